@@ -25,11 +25,11 @@ LOCAL_SRC_FILES := $(call all-java-files-under, src)
 
 LOCAL_STATIC_JAVA_LIBRARIES := android-support-v13 libMoKeePushService volley Alipay UPPayAssistEx UPPayPluginEx WanpuPay MobileSec Utdid4all PayPal
 
-LOCAL_SRC_FILES := $(call all-subdir-java-files) \
-
 LOCAL_PACKAGE_NAME := MoKeeHelper
 LOCAL_CERTIFICATE := platform
 
 LOCAL_PROGUARD_FLAG_FILES := proguard.flags
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
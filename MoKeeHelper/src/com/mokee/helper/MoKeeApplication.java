@@ -35,6 +35,7 @@ import com.android.settings.mokee.stats.Utilities;
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
 import com.mokee.helper.activities.MoKeeCenter;
+import com.mokee.helper.misc.UpdateCatalog;
 import com.mokee.helper.utils.Utils;
 
 public class MoKeeApplication extends Application implements
@@ -43,6 +44,7 @@ public class MoKeeApplication extends Application implements
     private static Context context;
     private boolean mMainActivityActive;
     private RequestQueue mRequestQueue;
+    private UpdateCatalog mUpdateCatalog;
     private SharedPreferences prefs;
 
     private static final String TAG = "MoKeeApplication";
@@ -82,6 +84,7 @@ public class MoKeeApplication extends Application implements
         registerActivityLifecycleCallbacks(this);
         mRequestQueue = Volley.newRequestQueue(this);
         context = getApplicationContext();
+        mUpdateCatalog = new UpdateCatalog(context);
 
         // MoKeePush Interface
         prefs = context.getSharedPreferences(MKPUSH_PREF, 0);
@@ -203,4 +206,8 @@ public class MoKeeApplication extends Application implements
     public RequestQueue getQueue() {
         return mRequestQueue;
     }
+
+    public UpdateCatalog getUpdateCatalog() {
+        return mUpdateCatalog;
+    }
 }
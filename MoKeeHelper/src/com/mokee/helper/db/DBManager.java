@@ -17,28 +17,190 @@
 
 package com.mokee.helper.db;
 
-import com.mokee.helper.misc.Constants;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
+/**
+ * 下载数据库
+ *
+ * One helper and one open connection per process, shared by all DAOs.
+ * Opening download.db is far more expensive than the statements run on it,
+ * so the DAOs no longer open and close it around every call.
+ * The database runs in WAL mode so progress reads from the UI never wait
+ * for segment writers, and hot statements are compiled once per connection.
+ * SQLiteDatabase is thread safe and pools reader connections in WAL mode,
+ * so the DAOs take no lock of their own; only a cached statement's bind
+ * and execute are guarded, by the statement itself.
+ */
 public class DBManager extends SQLiteOpenHelper {
-    public DBManager(Context context) {
-        super(context, "download.db", null, Constants.INTENT_FLAG_GET_UPDATE);
+    // 旧版本以Constants.INTENT_FLAG_GET_UPDATE的值1024作为数据库版本，
+    // 之后的版本号固定写死，不再随该常量变化
+    private static final int VERSION_LEGACY = 1024;
+    private static final int VERSION_VALIDATOR = 1025;
+    private static final int VERSION_DIGEST = 1026;
+    private static final int VERSION_DOWNLOAD_ID = 1027;
+    private static final int VERSION_HISTORY = 1028;
+    private static final int DATABASE_VERSION = VERSION_HISTORY;
+
+    private static DBManager dbManager = null;
+    private volatile SQLiteDatabase database;
+    private final ConcurrentMap<String, SQLiteStatement> statements =
+            new ConcurrentHashMap<String, SQLiteStatement>();
+
+    private DBManager(Context context) {
+        super(context, "download.db", null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * 进程内唯一的数据库帮助类
+     */
+    public static synchronized DBManager getInstance(Context context) {
+        if (dbManager == null) {
+            dbManager = new DBManager(context.getApplicationContext());
+        }
+        return dbManager;
+    }
+
+    /**
+     * 获取共享连接，首次调用时打开，之后随进程存活
+     */
+    public SQLiteDatabase getDatabase() {
+        SQLiteDatabase db = database;
+        if (db != null && db.isOpen()) {
+            return db;
+        }
+        synchronized (this) {
+            if (database == null || !database.isOpen()) {
+                database = getWritableDatabase();
+            }
+            return database;
+        }
+    }
+
+    /**
+     * 获取预编译语句，每条SQL每个连接只编译一次
+     *
+     * SQLiteStatement is not thread safe; callers bind and execute while
+     * holding the statement's monitor. Compiling a write statement takes the
+     * primary connection, so it must not happen under a lock that a thread
+     * inside a transaction may also wait for. Two threads may compile the
+     * same SQL; the loser closes its copy.
+     */
+    public SQLiteStatement getStatement(String sql) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            SQLiteStatement compiled = getDatabase().compileStatement(sql);
+            statement = statements.putIfAbsent(sql, compiled);
+            if (statement == null) {
+                statement = compiled;
+            } else {
+                compiled.close();
+            }
+        }
+        return statement;
+    }
+
+    /**
+     * 绑定参数
+     */
+    public static void bind(SQLiteStatement statement, Object... bindArgs) {
+        statement.clearBindings();
+        for (int i = 0; i < bindArgs.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, bindArgs[i]);
+        }
+    }
+
+    /**
+     * 关闭共享连接，下次getDatabase()时重新打开
+     */
+    @Override
+    public synchronized void close() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        super.close();
+        database = null;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // 删除下载记录时级联删除其分段记录
+        db.setForeignKeyConstraintsEnabled(true);
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL("CREATE TABLE IF NOT EXISTS thread_info(_id integer PRIMARY KEY AUTOINCREMENT, thread_id integer, "
-                + "start_pos long, end_pos long, down_size long,url text)");
         db.execSQL("CREATE TABLE IF NOT EXISTS download_info(_id integer PRIMARY KEY AUTOINCREMENT, down_id integer, "
-                + "url text,flag integer,local_file text,file_name text,file_size long,state integer)");
+                + "url text,flag integer,local_file text,file_name text,file_size long,state integer,validator text,digest_state blob)");
+        createThreadTable(db, "thread_info");
+        createIndexes(db);
+        createHistoryTable(db);
     }
 
+    /**
+     * 逐版本升级，每一步只负责相邻两个版本，最早为{@link #VERSION_LEGACY}
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < VERSION_VALIDATOR) {
+            // 续传校验值(ETag/Last-Modified)
+            db.execSQL("ALTER TABLE download_info ADD COLUMN validator text");
+        }
+        if (oldVersion < VERSION_DIGEST) {
+            // 下载中计算的MD5中间状态
+            db.execSQL("ALTER TABLE download_info ADD COLUMN digest_state blob");
+        }
+        if (oldVersion < VERSION_DOWNLOAD_ID) {
+            upgradeToDownloadId(db);
+        }
+        if (oldVersion < VERSION_HISTORY) {
+            createHistoryTable(db);
+        }
+    }
+
+    /**
+     * 分段记录改为引用download_info._id，保留未完成的下载
+     */
+    private void upgradeToDownloadId(SQLiteDatabase db) {
+        createThreadTable(db, "thread_info_new");
+        db.execSQL("INSERT INTO thread_info_new(thread_id, start_pos, end_pos, down_size, download_id) "
+                + "SELECT t.thread_id, t.start_pos, t.end_pos, t.down_size, "
+                + "(SELECT max(d._id) FROM download_info d WHERE d.url=t.url) FROM thread_info t "
+                + "WHERE EXISTS (SELECT 1 FROM download_info d WHERE d.url=t.url)");
+        db.execSQL("DROP TABLE thread_info");
+        db.execSQL("ALTER TABLE thread_info_new RENAME TO thread_info");
+        createIndexes(db);
+    }
+
+    private static void createThreadTable(SQLiteDatabase db, String name) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + name + "(_id integer PRIMARY KEY AUTOINCREMENT, thread_id integer, "
+                + "start_pos long, end_pos long, down_size long, "
+                + "download_id integer REFERENCES download_info(_id) ON DELETE CASCADE)");
+    }
+
+    /**
+     * 下载历史，不随下载记录删除
+     */
+    private static void createHistoryTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS download_history(_id integer PRIMARY KEY AUTOINCREMENT, "
+                + "url text, host text, file_size long, bytes long, start_time long, duration long, "
+                + "peak_speed long, retries integer, segments integer, verify_time long, outcome integer)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS download_history_url ON download_history(url)");
+    }
 
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS download_info_url ON download_info(url)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS download_info_down_id ON download_info(down_id)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS download_info_file_name ON download_info(file_name)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS thread_info_download_id ON thread_info(download_id, thread_id)");
     }
 
 }
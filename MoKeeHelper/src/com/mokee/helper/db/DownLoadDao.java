@@ -17,9 +17,14 @@
 
 package com.mokee.helper.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.misc.DownLoadInfo;
@@ -30,6 +35,15 @@ import com.mokee.helper.misc.DownLoadInfo;
  * @author wszfer
  */
 public class DownLoadDao {
+    private static final String SQL_COUNT_BY_URL = "select count(*) from download_info where url=?";
+    private static final String SQL_UPDATE_STATE = "update download_info set state=? where url=?";
+    private static final String SQL_ID_BY_URL = "select max(_id) from download_info where url=?";
+    private static final String SQL_DELETE_THREADS_BY_ID = "delete from thread_info where download_id=?";
+    private static final String SQL_DELETE_BY_ID = "delete from download_info where _id=?";
+    // 多列查询无法用SQLiteStatement，固定的SQL由连接的预编译缓存复用
+    private static final String SQL_QUERY_BY_DOWN_ID = "select url, flag, local_file, file_name, file_size, state from download_info where down_id=?";
+    private static final String SQL_QUERY_BY_URL = "select flag, down_id, local_file, file_name, file_size, state from download_info where url=?";
+
     private static DownLoadDao downLoadDao = null;
     private Context context;
 
@@ -37,56 +51,73 @@ public class DownLoadDao {
         this.context = context;
     }
 
-    public static DownLoadDao getInstance() {
+    public static synchronized DownLoadDao getInstance() {
         if (downLoadDao == null) {
             downLoadDao = new DownLoadDao(MoKeeApplication.getContext());
         }
         return downLoadDao;
     }
 
+    /**
+     * 进程内共享的数据库连接，不要关闭
+     */
     public SQLiteDatabase getConnection() {
         SQLiteDatabase sqliteDatabase = null;
         try {
-            sqliteDatabase = new DBManager(context).getWritableDatabase();
+            sqliteDatabase = DBManager.getInstance(context).getDatabase();
         } catch (Exception e) {
         }
         return sqliteDatabase;
     }
 
+    private SQLiteStatement getStatement(String sql) {
+        return DBManager.getInstance(context).getStatement(sql);
+    }
+
     /**
      * 查看数据库中是否有数据
      */
-    public synchronized boolean isHasInfos(String fileUrl) {
-        SQLiteDatabase database = getConnection();
-        int count = -1;
-        Cursor cursor = null;
+    public boolean isHasInfos(String fileUrl) {
+        long count = -1;
         try {
-            String sql = "select count(*)  from download_info where url=?";
-            cursor = database.rawQuery(sql, new String[] {
-                    fileUrl
-            });
-            if (cursor.moveToFirst()) {
-                count = cursor.getInt(0);
+            SQLiteStatement statement = getStatement(SQL_COUNT_BY_URL);
+            synchronized (statement) {
+                DBManager.bind(statement, fileUrl);
+                count = statement.simpleQueryForLong();
             }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
-            }
-            if (null != cursor) {
-                cursor.close();
-            }
         }
         return count > 0;
     }
 
+    /**
+     * 获取下载记录主键，分段记录以此关联
+     *
+     * @param fileUrl
+     * @return 不存在时返回-1
+     */
+    public long getDownloadId(String fileUrl) {
+        try {
+            SQLiteStatement statement = getStatement(SQL_ID_BY_URL);
+            synchronized (statement) {
+                DBManager.bind(statement, fileUrl);
+                // max() yields NULL, read as 0, when there is no row
+                long id = statement.simpleQueryForLong();
+                return id > 0 ? id : -1;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return -1;
+    }
+
     /**
      * 添加下载信息
      *
      * @param dli
      */
-    public synchronized void saveInfo(DownLoadInfo dli) {
+    public void saveInfo(DownLoadInfo dli) {
         SQLiteDatabase database = getConnection();
         try {
             String sql = "insert into download_info( down_id, url, flag, local_file, file_name,file_size ) values (?,?,?,?,?,?)";
@@ -97,10 +128,6 @@ public class DownLoadDao {
             database.execSQL(sql, bindArgs);
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
-            }
         }
     }
 
@@ -110,26 +137,22 @@ public class DownLoadDao {
      * @param downID
      * @return
      */
-    public synchronized DownLoadInfo getDownLoadInfo(String downID) {
+    public DownLoadInfo getDownLoadInfo(String downID) {
         SQLiteDatabase database = getConnection();
         Cursor cursor = null;
         DownLoadInfo dli = null;
         try {
-            String sql = "select url, flag, local_file, file_name, file_size, state from download_info where down_id=?";
-            cursor = database.rawQuery(sql, new String[] {
+            cursor = database.rawQuery(SQL_QUERY_BY_DOWN_ID, new String[] {
                     downID
             });
             while (cursor.moveToNext()) {
                 dli = new DownLoadInfo(cursor.getString(0), cursor.getInt(1), downID,
-                        cursor.getString(2), cursor.getString(3), cursor.getInt(4),
+                        cursor.getString(2), cursor.getString(3), cursor.getLong(4),
                         cursor.getInt(5));
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (null != database) {
-                database.close();
-            }
             if (null != cursor) {
                 cursor.close();
             }
@@ -137,12 +160,39 @@ public class DownLoadDao {
         return dli;
     }
 
+    /**
+     * 获取全部下载信息，供内存登记表冷启动加载
+     *
+     * @return
+     */
+    public List<DownLoadInfo> getAllInfos() {
+        List<DownLoadInfo> list = new ArrayList<DownLoadInfo>();
+        SQLiteDatabase database = getConnection();
+        Cursor cursor = null;
+        try {
+            String sql = "select url, flag, down_id, local_file, file_name, file_size, state from download_info order by _id";
+            cursor = database.rawQuery(sql, null);
+            while (cursor.moveToNext()) {
+                list.add(new DownLoadInfo(cursor.getString(0), cursor.getInt(1),
+                        cursor.getString(2), cursor.getString(3), cursor.getString(4),
+                        cursor.getLong(5), cursor.getInt(6)));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        return list;
+    }
+
     /**
      * getFileName
      * @param fileName
      * @return
      */
-    public synchronized DownLoadInfo getDownLoadInfoByName(String fileName) {
+    public DownLoadInfo getDownLoadInfoByName(String fileName) {
         SQLiteDatabase database = getConnection();
         Cursor cursor = null;
         DownLoadInfo dli = null;
@@ -152,16 +202,13 @@ public class DownLoadDao {
                     fileName
             });
             while (cursor.moveToNext()) {
-                dli = new DownLoadInfo(cursor.getString(0), cursor.getInt(1), cursor.getString(0),
-                        cursor.getString(2), cursor.getString(3), cursor.getInt(4),
-                        cursor.getInt(5));
+                dli = new DownLoadInfo(cursor.getString(0), cursor.getInt(1), cursor.getString(2),
+                        cursor.getString(3), cursor.getString(4), cursor.getLong(5),
+                        cursor.getInt(6));
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (null != database) {
-                database.close();
-            }
             if (null != cursor) {
                 cursor.close();
             }
@@ -175,26 +222,22 @@ public class DownLoadDao {
      * @param fileUrl
      * @return
      */
-    public synchronized DownLoadInfo getDownLoadInfoByUrl(String fileUrl) {
+    public DownLoadInfo getDownLoadInfoByUrl(String fileUrl) {
         SQLiteDatabase database = getConnection();
         Cursor cursor = null;
         DownLoadInfo dli = null;
         try {
-            String sql = "select flag, down_id, local_file, file_name, file_size, state from download_info where url=?";
-            cursor = database.rawQuery(sql, new String[] {
+            cursor = database.rawQuery(SQL_QUERY_BY_URL, new String[] {
                     fileUrl
             });
             while (cursor.moveToNext()) {
                 dli = new DownLoadInfo(fileUrl, cursor.getInt(0), cursor.getString(1),
-                        cursor.getString(2), cursor.getString(3), cursor.getInt(4),
+                        cursor.getString(2), cursor.getString(3), cursor.getLong(4),
                         cursor.getInt(5));
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (null != database) {
-                database.close();
-            }
             if (null != cursor) {
                 cursor.close();
             }
@@ -208,44 +251,129 @@ public class DownLoadDao {
      * @param fileUrl
      * @param state
      */
-    public synchronized void updataState(String fileUrl, int state) {
+    public void updataState(String fileUrl, int state) {
+        try {
+            SQLiteStatement statement = getStatement(SQL_UPDATE_STATE);
+            synchronized (statement) {
+                DBManager.bind(statement, state, fileUrl);
+                statement.executeUpdateDelete();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 更新文件大小
+     *
+     * @param fileUrl
+     * @param state
+     */
+    public void updataFileSize(String fileUrl, long fileSize) {
         SQLiteDatabase database = getConnection();
         try {
-            String sql = "update download_info set state=? where url=? ";
+            String sql = "update download_info set file_size=? where url=? ";
             Object[] bindArgs = {
-                    state, fileUrl
+                    fileSize, fileUrl
             };
             database.execSQL(sql, bindArgs);
         } catch (Exception e) {
             e.printStackTrace();
+        }
+    }
+
+    /**
+     * 更新续传校验值
+     *
+     * @param fileUrl
+     * @param validator ETag或Last-Modified
+     */
+    public void updataValidator(String fileUrl, String validator) {
+        SQLiteDatabase database = getConnection();
+        try {
+            String sql = "update download_info set validator=? where url=? ";
+            Object[] bindArgs = {
+                    validator, fileUrl
+            };
+            database.execSQL(sql, bindArgs);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取续传校验值
+     *
+     * @param fileUrl
+     * @return
+     */
+    public String getValidator(String fileUrl) {
+        SQLiteDatabase database = getConnection();
+        Cursor cursor = null;
+        String validator = null;
+        try {
+            String sql = "select validator from download_info where url=?";
+            cursor = database.rawQuery(sql, new String[] {
+                    fileUrl
+            });
+            if (cursor.moveToFirst()) {
+                validator = cursor.getString(0);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         } finally {
-            if (null != database) {
-                database.close();
+            if (null != cursor) {
+                cursor.close();
             }
         }
+        return validator;
     }
 
     /**
-     * 更新文件大小
+     * 保存MD5中间状态
      *
      * @param fileUrl
-     * @param state
+     * @param state ResumableMD5状态，null表示清除
      */
-    public synchronized void updataFileSize(String fileUrl, long fileSize) {
+    public void updataDigest(String fileUrl, byte[] state) {
         SQLiteDatabase database = getConnection();
         try {
-            String sql = "update download_info set file_size=? where url=? ";
+            String sql = "update download_info set digest_state=? where url=? ";
             Object[] bindArgs = {
-                    fileSize, fileUrl
+                    state, fileUrl
             };
             database.execSQL(sql, bindArgs);
         } catch (Exception e) {
             e.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取MD5中间状态
+     *
+     * @param fileUrl
+     * @return
+     */
+    public byte[] getDigest(String fileUrl) {
+        SQLiteDatabase database = getConnection();
+        Cursor cursor = null;
+        byte[] state = null;
+        try {
+            String sql = "select digest_state from download_info where url=?";
+            cursor = database.rawQuery(sql, new String[] {
+                    fileUrl
+            });
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                state = cursor.getBlob(0);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
         } finally {
-            if (null != database) {
-                database.close();
+            if (null != cursor) {
+                cursor.close();
             }
         }
+        return state;
     }
 
     /**
@@ -253,7 +381,7 @@ public class DownLoadDao {
      *
      * @param url
      */
-    public synchronized void delete(String fileUrl) {
+    public void delete(String fileUrl) {
         SQLiteDatabase database = getConnection();
         try {
             database.delete("download_info", "url=?", new String[] {
@@ -261,10 +389,40 @@ public class DownLoadDao {
             });
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
+        }
+    }
+
+    /**
+     * 批量删除下载记录及其分段记录，同一事务内提交
+     *
+     * @param downloadIds download_info._id
+     */
+    public void deleteInfos(Collection<Long> downloadIds) {
+        if (downloadIds.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase database = getConnection();
+        try {
+            database.beginTransaction();
+            try {
+                SQLiteStatement threads = getStatement(SQL_DELETE_THREADS_BY_ID);
+                SQLiteStatement downloads = getStatement(SQL_DELETE_BY_ID);
+                for (Long id : downloadIds) {
+                    synchronized (threads) {
+                        DBManager.bind(threads, id);
+                        threads.executeUpdateDelete();
+                    }
+                    synchronized (downloads) {
+                        DBManager.bind(downloads, id);
+                        downloads.executeUpdateDelete();
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.mokee.helper.MoKeeApplication;
+import com.mokee.helper.misc.DownLoadHistory;
+import com.mokee.helper.misc.DownLoadStats;
+import com.mokee.helper.utils.DownLoader;
+
+/**
+ * 下载历史及统计
+ *
+ * Unlike download_info, rows here outlive the download. The table is capped
+ * at {@link #MAX_ROWS}; the oldest sessions are dropped first.
+ */
+public class DownLoadHistoryDao {
+    public static final int MAX_ROWS = 500;
+
+    private static final String SQL_INSERT = "insert into download_history(url, host, file_size, bytes, "
+            + "start_time, duration, peak_speed, retries, segments, verify_time, outcome) "
+            + "values (?,?,?,?,?,?,?,?,?,?,?)";
+    private static final String SQL_TRIM = "delete from download_history where _id<=?";
+    private static final String SQL_UPDATE_VERIFY = "update download_history set verify_time=?, outcome=? "
+            + "where _id=(select max(_id) from download_history where url=?)";
+    private static final String SQL_STATS = "select count(*), "
+            + "sum(outcome=" + DownLoader.STATUS_COMPLETE + "), "
+            + "sum(outcome in (" + DownLoader.STATUS_ERROR + "," + DownLoader.STATUS_FAILED + ")), "
+            + "sum(bytes), avg(duration), sum(bytes)*1000/max(sum(duration),1), max(peak_speed), "
+            + "avg(retries), avg(case when verify_time>=0 then verify_time end) from download_history";
+
+    private static DownLoadHistoryDao historyDao = null;
+    private Context context;
+
+    private DownLoadHistoryDao(Context context) {
+        this.context = context;
+    }
+
+    public static synchronized DownLoadHistoryDao getInstance() {
+        if (historyDao == null) {
+            historyDao = new DownLoadHistoryDao(MoKeeApplication.getContext());
+        }
+        return historyDao;
+    }
+
+    /**
+     * 进程内共享的数据库连接，不要关闭
+     */
+    public SQLiteDatabase getConnection() {
+        SQLiteDatabase sqliteDatabase = null;
+        try {
+            sqliteDatabase = DBManager.getInstance(context).getDatabase();
+        } catch (Exception e) {
+        }
+        return sqliteDatabase;
+    }
+
+    private SQLiteStatement getStatement(String sql) {
+        return DBManager.getInstance(context).getStatement(sql);
+    }
+
+    /**
+     * 记录一次下载，超出上限时删除最早的记录
+     */
+    public void saveHistory(DownLoadHistory history) {
+        SQLiteDatabase database = getConnection();
+        try {
+            database.beginTransaction();
+            try {
+                long id;
+                SQLiteStatement statement = getStatement(SQL_INSERT);
+                synchronized (statement) {
+                    DBManager.bind(statement, history.getUrl(), history.getHost(),
+                            history.getFileSize(), history.getBytes(), history.getStartTime(),
+                            history.getDuration(), history.getPeakSpeed(), history.getRetries(),
+                            history.getSegments(), history.getVerifyTime(), history.getOutcome());
+                    id = statement.executeInsert();
+                }
+                if (id > MAX_ROWS) {
+                    SQLiteStatement trim = getStatement(SQL_TRIM);
+                    synchronized (trim) {
+                        DBManager.bind(trim, id - MAX_ROWS);
+                        trim.executeUpdateDelete();
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 记录最近一次下载的校验耗时及结果
+     */
+    public void updataVerify(String fileUrl, long verifyTime, int outcome) {
+        try {
+            SQLiteStatement statement = getStatement(SQL_UPDATE_VERIFY);
+            synchronized (statement) {
+                DBManager.bind(statement, verifyTime, outcome, fileUrl);
+                statement.executeUpdateDelete();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 最近的下载记录，新的在前
+     */
+    public List<DownLoadHistory> getHistory(int limit) {
+        List<DownLoadHistory> list = new ArrayList<DownLoadHistory>();
+        SQLiteDatabase database = getConnection();
+        Cursor cursor = null;
+        try {
+            String sql = "select url, host, file_size, bytes, start_time, duration, peak_speed, "
+                    + "retries, segments, verify_time, outcome from download_history "
+                    + "order by _id desc limit ?";
+            cursor = database.rawQuery(sql, new String[] {
+                    String.valueOf(limit)
+            });
+            while (cursor.moveToNext()) {
+                DownLoadHistory history = new DownLoadHistory(cursor.getString(0),
+                        cursor.getString(1), cursor.getLong(2), cursor.getLong(3),
+                        cursor.getLong(4), cursor.getLong(5), cursor.getLong(6), cursor.getInt(7),
+                        cursor.getInt(8), cursor.getInt(10));
+                history.setVerifyTime(cursor.getLong(9));
+                list.add(history);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 全部记录的汇总
+     */
+    public DownLoadStats getStats() {
+        List<DownLoadStats> list = queryStats(null);
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * 按镜像汇总
+     */
+    public List<DownLoadStats> getStatsByHost() {
+        return queryStats("host");
+    }
+
+    /**
+     * 按分段数汇总，用于调整初始连接数
+     */
+    public List<DownLoadStats> getStatsBySegments() {
+        return queryStats("segments");
+    }
+
+    private List<DownLoadStats> queryStats(String groupBy) {
+        List<DownLoadStats> list = new ArrayList<DownLoadStats>();
+        SQLiteDatabase database = getConnection();
+        Cursor cursor = null;
+        try {
+            String sql = groupBy == null ? SQL_STATS
+                    : SQL_STATS.replace("select ", "select " + groupBy + ", ")
+                            + " group by " + groupBy + " order by count(*) desc";
+            cursor = database.rawQuery(sql, null);
+            int offset = groupBy == null ? 0 : 1;
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(offset) == 0) {
+                    continue;
+                }
+                list.add(new DownLoadStats(groupBy == null ? null : cursor.getString(0),
+                        cursor.getInt(offset), cursor.getInt(offset + 1),
+                        cursor.getInt(offset + 2), cursor.getLong(offset + 3),
+                        cursor.getLong(offset + 4), cursor.getLong(offset + 5),
+                        cursor.getLong(offset + 6), cursor.getFloat(offset + 7),
+                        cursor.isNull(offset + 8) ? -1 : cursor.getLong(offset + 8)));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (null != cursor) {
+                cursor.close();
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.db;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mokee.helper.misc.DownLoadInfo;
+import com.mokee.helper.utils.DownLoadProgress;
+
+/**
+ * 下载记录内存登记表
+ *
+ * The process-wide source of truth for download_info. Rows are loaded from
+ * SQLite once, lookups by id, url and file name are served from memory, and
+ * state changes are persisted write-behind on a single thread. Inserts,
+ * deletes and size changes go through the same queue but wait for
+ * completion: segment rows reference the download row by its primary key,
+ * and a stale file_size next to existing segments reads as a changed file.
+ * Entries are never modified in place; a change replaces the entry under
+ * all three keys, and callers get copies. Saving a download drops any older
+ * record with the same url or file name, so no key is left pointing at a
+ * stale row. The initial load reads SQLite before taking the lock.
+ */
+public class DownLoadRegistry {
+    private static DownLoadRegistry downLoadRegistry = null;
+
+    private final Map<String, DownLoadInfo> byId = new HashMap<String, DownLoadInfo>();
+    private final Map<String, DownLoadInfo> byUrl = new HashMap<String, DownLoadInfo>();
+    private final Map<String, DownLoadInfo> byName = new HashMap<String, DownLoadInfo>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private volatile boolean loaded = false;
+
+    private DownLoadRegistry() {
+    }
+
+    public static synchronized DownLoadRegistry getInstance() {
+        if (downLoadRegistry == null) {
+            downLoadRegistry = new DownLoadRegistry();
+        }
+        return downLoadRegistry;
+    }
+
+    /**
+     * 冷启动时从数据库加载
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        List<DownLoadInfo> infos = DownLoadDao.getInstance().getAllInfos();
+        synchronized (this) {
+            if (!loaded) {
+                // 按_id顺序，较新的记录替换同地址或同名的旧记录
+                for (DownLoadInfo dli : infos) {
+                    replace(dli);
+                }
+                loaded = true;
+            }
+        }
+    }
+
+    private void put(DownLoadInfo dli) {
+        byId.put(dli.getDownID(), dli);
+        byUrl.put(dli.getUrl(), dli);
+        byName.put(dli.getFileName(), dli);
+    }
+
+    /**
+     * 只移除仍指向该记录的键
+     */
+    private void remove(DownLoadInfo dli) {
+        if (byId.get(dli.getDownID()) == dli) {
+            byId.remove(dli.getDownID());
+        }
+        if (byUrl.get(dli.getUrl()) == dli) {
+            byUrl.remove(dli.getUrl());
+        }
+        if (byName.get(dli.getFileName()) == dli) {
+            byName.remove(dli.getFileName());
+        }
+    }
+
+    /**
+     * 加入记录并移除同地址或同名的旧记录
+     *
+     * @return 被移除的旧记录
+     */
+    private List<DownLoadInfo> replace(DownLoadInfo dli) {
+        List<DownLoadInfo> stale = new ArrayList<DownLoadInfo>();
+        DownLoadInfo byUrlOld = byUrl.get(dli.getUrl());
+        if (byUrlOld != null) {
+            stale.add(byUrlOld);
+        }
+        DownLoadInfo byNameOld = byName.get(dli.getFileName());
+        if (byNameOld != null && byNameOld != byUrlOld) {
+            stale.add(byNameOld);
+        }
+        for (DownLoadInfo old : stale) {
+            remove(old);
+        }
+        put(dli);
+        return stale;
+    }
+
+    private static DownLoadInfo withState(DownLoadInfo dli, long fileSize, int state) {
+        return new DownLoadInfo(dli.getUrl(), dli.getFlag(), dli.getDownID(), dli.getLocalFile(),
+                dli.getFileName(), fileSize, state);
+    }
+
+    private static DownLoadInfo copy(DownLoadInfo dli) {
+        if (dli == null) {
+            return null;
+        }
+        return withState(dli, dli.getFileSize(), dli.getState());
+    }
+
+    private void writeBehind(Runnable write) {
+        writer.execute(write);
+    }
+
+    private void writeThrough(Runnable write) {
+        Future<?> done = writer.submit(write);
+        try {
+            done.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 查看是否有下载记录
+     */
+    public boolean isHasInfos(String fileUrl) {
+        ensureLoaded();
+        synchronized (this) {
+            return byUrl.containsKey(fileUrl);
+        }
+    }
+
+    /**
+     * 添加下载信息
+     *
+     * @param dli
+     */
+    public void saveInfo(final DownLoadInfo dli) {
+        ensureLoaded();
+        final List<String> staleUrls = new ArrayList<String>();
+        synchronized (this) {
+            for (DownLoadInfo old : replace(copy(dli))) {
+                staleUrls.add(old.getUrl());
+            }
+        }
+        writeThrough(new Runnable() {
+            @Override
+            public void run() {
+                for (String url : staleUrls) {
+                    deleteRows(url);
+                }
+                DownLoadDao.getInstance().saveInfo(dli);
+            }
+        });
+    }
+
+    /**
+     * 获取下载信息
+     *
+     * @param downID
+     * @return
+     */
+    public DownLoadInfo getDownLoadInfo(String downID) {
+        ensureLoaded();
+        synchronized (this) {
+            return copy(byId.get(downID));
+        }
+    }
+
+    /**
+     * 按文件名获取下载信息
+     *
+     * @param fileName
+     * @return
+     */
+    public DownLoadInfo getDownLoadInfoByName(String fileName) {
+        ensureLoaded();
+        synchronized (this) {
+            return copy(byName.get(fileName));
+        }
+    }
+
+    /**
+     * 按地址获取下载信息
+     *
+     * @param fileUrl
+     * @return
+     */
+    public DownLoadInfo getDownLoadInfoByUrl(String fileUrl) {
+        ensureLoaded();
+        synchronized (this) {
+            return copy(byUrl.get(fileUrl));
+        }
+    }
+
+    /**
+     * 更新状态
+     *
+     * @param fileUrl
+     * @param state
+     */
+    public void updataState(final String fileUrl, final int state) {
+        ensureLoaded();
+        synchronized (this) {
+            DownLoadInfo dli = byUrl.get(fileUrl);
+            if (dli != null) {
+                remove(dli);
+                put(withState(dli, dli.getFileSize(), state));
+            }
+        }
+        DownLoadProgress.getInstance().publishState(fileUrl, state);
+        writeBehind(new Runnable() {
+            @Override
+            public void run() {
+                DownLoadDao.getInstance().updataState(fileUrl, state);
+            }
+        });
+    }
+
+    /**
+     * 更新文件大小
+     *
+     * @param fileUrl
+     * @param fileSize
+     */
+    public void updataFileSize(final String fileUrl, final long fileSize) {
+        ensureLoaded();
+        synchronized (this) {
+            DownLoadInfo dli = byUrl.get(fileUrl);
+            if (dli != null) {
+                remove(dli);
+                put(withState(dli, fileSize, dli.getState()));
+            }
+        }
+        // 分段记录写入前落盘，否则被杀后下次启动会认为文件已变化
+        writeThrough(new Runnable() {
+            @Override
+            public void run() {
+                DownLoadDao.getInstance().updataFileSize(fileUrl, fileSize);
+            }
+        });
+    }
+
+    /**
+     * 删除下载信息，同时删除分段记录
+     *
+     * @param fileUrl
+     */
+    public void delete(final String fileUrl) {
+        ensureLoaded();
+        synchronized (this) {
+            DownLoadInfo dli = byUrl.get(fileUrl);
+            if (dli != null) {
+                remove(dli);
+            }
+        }
+        DownLoadProgress.getInstance().remove(fileUrl);
+        writeThrough(new Runnable() {
+            @Override
+            public void run() {
+                deleteRows(fileUrl);
+            }
+        });
+    }
+
+    /**
+     * 删除该地址的下载记录及分段记录，在写入线程调用
+     */
+    private static void deleteRows(String fileUrl) {
+        long id = DownLoadDao.getInstance().getDownloadId(fileUrl);
+        if (id > 0) {
+            ThreadDownLoadDao.getInstance().delete(id);
+        }
+        DownLoadDao.getInstance().delete(fileUrl);
+    }
+
+    /**
+     * 批量删除下载信息及分段记录，一次提交
+     *
+     * @param fileUrls
+     */
+    public void delete(Collection<String> fileUrls) {
+        if (fileUrls.isEmpty()) {
+            return;
+        }
+        final List<String> urls = new ArrayList<String>(fileUrls);
+        ensureLoaded();
+        synchronized (this) {
+            for (String fileUrl : urls) {
+                DownLoadInfo dli = byUrl.get(fileUrl);
+                if (dli != null) {
+                    remove(dli);
+                }
+                DownLoadProgress.getInstance().remove(fileUrl);
+            }
+        }
+        writeThrough(new Runnable() {
+            @Override
+            public void run() {
+                List<Long> ids = new ArrayList<Long>();
+                for (String fileUrl : urls) {
+                    long id = DownLoadDao.getInstance().getDownloadId(fileUrl);
+                    if (id > 0) {
+                        ids.add(id);
+                    }
+                }
+                DownLoadDao.getInstance().deleteInfos(ids);
+            }
+        });
+    }
+
+    /**
+     * 等待排队的写入完成，进程可能随后被杀时调用
+     */
+    public void flush() {
+        writeThrough(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+}
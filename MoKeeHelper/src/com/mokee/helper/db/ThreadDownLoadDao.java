@@ -19,10 +19,13 @@ package com.mokee.helper.db;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
 
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.misc.ThreadDownLoadInfo;
@@ -33,6 +36,12 @@ import com.mokee.helper.misc.ThreadDownLoadInfo;
  * @author wszfer
  */
 public class ThreadDownLoadDao {
+    private static final String TAG = "ThreadDownLoadDao";
+
+    private static final String SQL_COUNT_BY_ID = "select count(*) from thread_info where download_id=?";
+    private static final String SQL_UPDATE_DOWN_SIZE = "update thread_info set down_size=? where download_id=? and thread_id=?";
+    private static final String SQL_INSERT = "insert into thread_info(thread_id,start_pos, end_pos,down_size,download_id) values (?,?,?,?,?)";
+
     private static ThreadDownLoadDao threadDownLoadDao = null;
     private Context context;
 
@@ -40,99 +49,104 @@ public class ThreadDownLoadDao {
         this.context = context;
     }
 
-    public static ThreadDownLoadDao getInstance() {
+    public static synchronized ThreadDownLoadDao getInstance() {
         if (threadDownLoadDao == null) {
             threadDownLoadDao = new ThreadDownLoadDao(MoKeeApplication.getContext());
         }
         return threadDownLoadDao;
     }
 
+    /**
+     * 进程内共享的数据库连接，不要关闭
+     */
     public SQLiteDatabase getConnection() {
         SQLiteDatabase sqliteDatabase = null;
         try {
-            sqliteDatabase = new DBManager(context).getWritableDatabase();
+            sqliteDatabase = DBManager.getInstance(context).getDatabase();
         } catch (Exception e) {
         }
         return sqliteDatabase;
     }
 
+    private SQLiteStatement getStatement(String sql) {
+        return DBManager.getInstance(context).getStatement(sql);
+    }
+
     /**
      * 查看数据库中是否有数据
+     *
+     * @param downloadId 下载记录主键，见DownLoadDao.getDownloadId
      */
-    public synchronized boolean isHasInfos(String fileUrl) {
-        SQLiteDatabase database = getConnection();
-        int count = -1;
-        Cursor cursor = null;
+    public boolean isHasInfos(long downloadId) {
+        long count = -1;
         try {
-            String sql = "select count(*)  from thread_info where url=?";
-            cursor = database.rawQuery(sql, new String[] {
-                    fileUrl
-            });
-            if (cursor.moveToFirst()) {
-                count = cursor.getInt(0);
+            SQLiteStatement statement = getStatement(SQL_COUNT_BY_ID);
+            synchronized (statement) {
+                DBManager.bind(statement, downloadId);
+                count = statement.simpleQueryForLong();
             }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
-            }
-            if (null != cursor) {
-                cursor.close();
-            }
         }
         return count > 0;
     }
 
     /**
-     * 保存 下载的具体信息
+     * 批量保存分段信息，同一事务内提交
      */
-    public synchronized void saveInfos(List<ThreadDownLoadInfo> infos) {
+    public void saveInfos(long downloadId, List<ThreadDownLoadInfo> infos) {
+        if (infos.isEmpty()) {
+            return;
+        }
+        if (downloadId < 0) {
+            Log.e(TAG, "No download_info for " + infos.get(0).getUrl());
+            return;
+        }
         SQLiteDatabase database = getConnection();
         try {
-            for (ThreadDownLoadInfo info : infos) {
-                String sql = "insert into thread_info(thread_id,start_pos, end_pos,down_size,url) values (?,?,?,?,?)";
-                Object[] bindArgs = {
-                        info.getThreadId(), info.getStartPos(), info.getEndPos(),
-                        info.getDownSize(), info.getUrl()
-                };
-                database.execSQL(sql, bindArgs);
+            database.beginTransaction();
+            try {
+                SQLiteStatement statement = getStatement(SQL_INSERT);
+                synchronized (statement) {
+                    for (ThreadDownLoadInfo info : infos) {
+                        DBManager.bind(statement, info.getThreadId(), info.getStartPos(),
+                                info.getEndPos(), info.getDownSize(), downloadId);
+                        statement.executeInsert();
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
             }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
-            }
         }
     }
 
     /**
      * 获取此URL的线程信息
      *
+     * @param downloadId
      * @param fileUrl
      * @return
      */
-    public synchronized List<ThreadDownLoadInfo> getThreadInfoList(String fileUrl) {
+    public List<ThreadDownLoadInfo> getThreadInfoList(long downloadId, String fileUrl) {
         List<ThreadDownLoadInfo> list = new ArrayList<ThreadDownLoadInfo>();
         SQLiteDatabase database = getConnection();
         Cursor cursor = null;
         try {
-            String sql = "select thread_id, start_pos, end_pos, down_size, url from thread_info where url=?";
+            String sql = "select thread_id, start_pos, end_pos, down_size from thread_info where download_id=?";
             cursor = database.rawQuery(sql, new String[] {
-                    fileUrl
+                    String.valueOf(downloadId)
             });
             while (cursor.moveToNext()) {
                 ThreadDownLoadInfo info = new ThreadDownLoadInfo(cursor.getInt(0),
-                        cursor.getInt(1), cursor.getInt(2), cursor.getInt(3), cursor.getString(4));
+                        cursor.getLong(1), cursor.getLong(2), cursor.getLong(3), fileUrl);
                 list.add(info);
             }
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (null != database) {
-                database.close();
-            }
             if (null != cursor) {
                 cursor.close();
             }
@@ -141,46 +155,81 @@ public class ThreadDownLoadDao {
     }
 
     /**
-     * 更新线程信息
+     * 批量更新线程信息，所有分段在同一事务内提交
      *
-     * @param threadId
-     * @param downSize
-     * @param fileUrl
+     * @param downloadId
+     * @param downSizes threadId -> downSize
      */
-    public synchronized void updataInfo(int threadId, long downSize, String fileUrl) {
+    public void updataInfos(long downloadId, Map<Integer, Long> downSizes) {
         SQLiteDatabase database = getConnection();
         try {
-            String sql = "update thread_info set down_size=? where thread_id=? and url=?";
-            Object[] bindArgs = {
-                    downSize, threadId, fileUrl
-            };
-            database.execSQL(sql, bindArgs);
+            database.beginTransaction();
+            try {
+                SQLiteStatement statement = getStatement(SQL_UPDATE_DOWN_SIZE);
+                synchronized (statement) {
+                    for (Map.Entry<Integer, Long> entry : downSizes.entrySet()) {
+                        DBManager.bind(statement, entry.getValue(), downloadId, entry.getKey());
+                        statement.executeUpdateDelete();
+                    }
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
+        }
+    }
+
+    /**
+     * 拆分分段：缩短原分段并插入新分段，同一事务内完成
+     *
+     * @param downloadId
+     * @param threadId 被拆分的分段
+     * @param endPos 被拆分分段新的结束点
+     * @param info 新分段
+     * @return 是否已写入
+     */
+    public boolean splitInfo(long downloadId, int threadId, long endPos,
+            ThreadDownLoadInfo info) {
+        SQLiteDatabase database = getConnection();
+        try {
+            database.beginTransaction();
+            try {
+                database.execSQL("update thread_info set end_pos=? where download_id=? and thread_id=?",
+                        new Object[] {
+                                endPos, downloadId, threadId
+                        });
+                SQLiteStatement statement = getStatement(SQL_INSERT);
+                synchronized (statement) {
+                    DBManager.bind(statement, info.getThreadId(), info.getStartPos(),
+                            info.getEndPos(), info.getDownSize(), downloadId);
+                    statement.executeInsert();
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
             }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+        return false;
     }
 
     /**
-     * 删除与url相关的记录
+     * 删除下载记录的全部分段
      *
-     * @param fileUrl
+     * @param downloadId
      */
-    public synchronized void delete(String fileUrl) {
+    public void delete(long downloadId) {
         SQLiteDatabase database = getConnection();
         try {
-            database.delete("thread_info", "url=?", new String[] {
-                    fileUrl
+            database.delete("thread_info", "download_id=?", new String[] {
+                    String.valueOf(downloadId)
             });
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (null != database) {
-                database.close();
-            }
         }
     }
 }
@@ -21,7 +21,6 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Date;
 import java.util.LinkedList;
-import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -35,7 +34,6 @@ import android.content.SharedPreferences;
 import android.mokee.utils.MoKeeUtils;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Parcelable;
 import android.os.UserHandle;
 import android.preference.PreferenceCategory;
@@ -52,16 +50,15 @@ import android.widget.Toast;
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.R;
 import com.mokee.helper.activities.MoKeeCenter;
-import com.mokee.helper.db.DownLoadDao;
-import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.db.DownLoadRegistry;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.DownLoadInfo;
 import com.mokee.helper.misc.ItemInfo;
-import com.mokee.helper.misc.State;
-import com.mokee.helper.misc.ThreadDownLoadInfo;
+import com.mokee.helper.misc.UpdateCatalog;
 import com.mokee.helper.receiver.DownloadReceiver;
 import com.mokee.helper.service.DownLoadService;
 import com.mokee.helper.service.UpdateCheckService;
+import com.mokee.helper.utils.DownLoadProgress;
 import com.mokee.helper.utils.DownLoader;
 import com.mokee.helper.utils.UpdateFilter;
 import com.mokee.helper.utils.Utils;
@@ -75,6 +72,7 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
     private static final String KEY_MOKEE_LAST_CHECK = "mokee_last_check";
 
     private boolean mDownloading = false;
+    private long mRenderedGeneration = -1;
     private long mDownloadId;
     private String mFileName;
 
@@ -91,7 +89,6 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
     private ItemPreference mDownloadingPreference;
     private File mExtrasFolder;
     private ProgressDialog mProgressDialog;
-    private Handler mUpdateHandler = new Handler();
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -100,7 +97,7 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
             if (flag == Constants.INTENT_FLAG_GET_EXTRAS) {
                 if (DownloadReceiver.ACTION_DOWNLOAD_STARTED.equals(action)) {
                     mDownloadId = intent.getLongExtra(DownLoadService.DOWNLOAD_ID, -1);
-                    mUpdateHandler.post(mUpdateProgress);
+                    refreshProgress();
                 } else if (UpdateCheckService.ACTION_CHECK_FINISHED.equals(action)) {
                     if (mProgressDialog != null) {
                         mProgressDialog.dismiss();
@@ -113,11 +110,11 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
                                     Toast.LENGTH_LONG).show();
                         }
                     }
-                    extrasLayout();
+                    extrasLayout(false);
                 } else if (MoKeeCenter.BR_ONNewIntent.equals(action)) {
                     // 唤醒
                     if (intent.getBooleanExtra(UpdateCheckService.EXTRA_UPDATE_LIST_UPDATED, false)) {
-                        extrasLayout();
+                        extrasLayout(false);
                     }
                     checkForDownloadCompleted(intent);
                 }
@@ -172,59 +169,67 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
         return true;
     }
 
-    // 更新进度条
-    private Runnable mUpdateProgress = new Runnable() {
-        public void run() {
-            if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
+    // 下载进度回调，只在状态或字节数变化时更新
+    private DownLoadProgress.Listener mProgressListener = new DownLoadProgress.Listener() {
+        @Override
+        public void onProgressChanged(String fileUrl, int state, long downloaded, long total) {
+            if (!mDownloading || mDownloadId < 0) {
                 return;
             }
-
-            ProgressBar progressBar = mDownloadingPreference.getProgressBar();
-            if (progressBar == null) {
-                return;
+            DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
+            if (dli != null && fileUrl.equals(dli.getUrl())) {
+                updateProgress(state, downloaded, total);
             }
-            DownLoadInfo dli = DownLoadDao.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
-            int status;
+        }
+    };
 
-            if (dli == null) {
-                // DownloadReceiver has likely already removed the download
-                // from the DB due to failure or MD5 mismatch
-                status = DownLoader.STATUS_PENDING;
-            } else {
-                status = dli.getState();
-            }
-            switch (status) {
-                case DownLoader.STATUS_PENDING:
-                    progressBar.setIndeterminate(true);
-                    break;
-                case DownLoader.STATUS_DOWNLOADING:
-                    List<ThreadDownLoadInfo> threadList = ThreadDownLoadDao.getInstance().getThreadInfoList(dli.getUrl());
-                    int totalBytes = -1;
-                    int downloadedBytes = 0;
-                    for (ThreadDownLoadInfo info : threadList) {
-                        downloadedBytes += info.getDownSize();
-                        totalBytes += info.getEndPos() - info.getStartPos() + 1;
-                    }
+    // 立即刷新进度条
+    private void refreshProgress() {
+        if (!mDownloading || mDownloadId < 0) {
+            return;
+        }
+        DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
+        if (dli == null) {
+            // DownloadReceiver has likely already removed the download
+            // from the DB due to failure or MD5 mismatch
+            updateProgress(DownLoader.STATUS_PENDING, 0, -1);
+        } else if (!DownLoadProgress.getInstance().notifyCurrent(dli.getUrl(), mProgressListener)) {
+            // 下载引擎尚未发布进度，按记录状态显示
+            updateProgress(dli.getState(), 0, -1);
+        }
+    }
 
-                    if (totalBytes < 0) {
-                        progressBar.setIndeterminate(true);
-                    } else {
-                        progressBar.setIndeterminate(false);
-                        progressBar.setMax(totalBytes);
-                        progressBar.setProgress(downloadedBytes);
-                    }
-                    break;
-                case DownLoader.STATUS_ERROR:
-                case DownLoader.STATUS_PAUSED:
-                    mDownloadingPreference.setStyle(ItemPreference.STYLE_EXTRAS_NEW);
-                    resetDownloadState();
-                    break;
-            }
-            if (status != DownLoader.STATUS_ERROR) {
-                mUpdateHandler.postDelayed(this, 1500);
-            }
+    // 更新进度条
+    private void updateProgress(int status, long downloadedBytes, long totalBytes) {
+        if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
+            return;
         }
-    };
+
+        ProgressBar progressBar = mDownloadingPreference.getProgressBar();
+        if (progressBar == null) {
+            return;
+        }
+        switch (status) {
+            case DownLoader.STATUS_PENDING:
+                progressBar.setIndeterminate(true);
+                break;
+            case DownLoader.STATUS_DOWNLOADING:
+                if (totalBytes <= 0) {
+                    progressBar.setIndeterminate(true);
+                } else {
+                    progressBar.setIndeterminate(false);
+                    // ProgressBar只支持int，按比例缩放
+                    progressBar.setMax(Utils.PROGRESS_MAX);
+                    progressBar.setProgress(Utils.scaleProgress(downloadedBytes, totalBytes));
+                }
+                break;
+            case DownLoader.STATUS_ERROR:
+            case DownLoader.STATUS_PAUSED:
+                mDownloadingPreference.setStyle(ItemPreference.STYLE_EXTRAS_NEW);
+                resetDownloadState();
+                break;
+        }
+    }
 
     private void resetDownloadState() {
         mDownloadId = -1;
@@ -234,7 +239,18 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
     }
 
     private void extrasLayout() {
+        extrasLayout(true);
+    }
+
+    /**
+     * @param force 本地文件或下载状态可能已变化，列表未变也重新显示
+     */
+    private void extrasLayout(boolean force) {
         updateLastCheckPreference();
+        UpdateCatalog.Snapshot snapshot = getCatalog().getExtras();
+        if (!force && snapshot.getGeneration() == mRenderedGeneration) {
+            return;
+        }
         // Read existing Updates
         LinkedList<String> existingFiles = new LinkedList<String>();
         mExtrasFolder = Utils.makeExtraFolder();
@@ -250,10 +266,15 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
         Utils.cancelNotification(MoKeeApplication.getContext());
 
         // Build list of updates
-        final LinkedList<ItemInfo> availableUpdates = State.loadMKState(
-                MoKeeApplication.getContext(), State.EXTRAS_FILENAME);
+        final LinkedList<ItemInfo> availableUpdates = new LinkedList<ItemInfo>(
+                snapshot.getItems());
         // Update the preference list
         refreshExtrasPreferences(availableUpdates);
+        mRenderedGeneration = snapshot.getGeneration();
+    }
+
+    private UpdateCatalog getCatalog() {
+        return ((MoKeeApplication) mContext.getApplicationContext()).getUpdateCatalog();
     }
 
     private void refreshExtrasPreferences(LinkedList<ItemInfo> updates) {
@@ -325,8 +346,8 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
         if (mProgressDialog != null) {
             return;
         }
-        State.saveMKState(MoKeeApplication.getContext(), new LinkedList<ItemInfo>(),
-                State.EXTRAS_FILENAME);
+        // 只清空界面，列表由检查结果替换；304时保留原列表
+        mRenderedGeneration = -1;
         refreshExtrasPreferences(new LinkedList<ItemInfo>());
         // If there is no internet connection, display a message and return.
         if (!MoKeeUtils.isOnline(mContext)) {
@@ -422,7 +443,7 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
         // Determine if there are any in-progress downloads
         mDownloadId = mPrefs.getLong(DownLoadService.DOWNLOAD_EXTRAS_ID, -1);
         if (mDownloadId >= 0) {
-            DownLoadInfo dli = DownLoadDao.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
+            DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
             if (dli != null) {
                 int status = dli.getState();
                 if (status == DownLoader.STATUS_PENDING
@@ -445,6 +466,7 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
         filter.addAction(MoKeeCenter.BR_ONNewIntent);// 唤醒
         mContext.registerReceiver(mReceiver, filter);
+        DownLoadProgress.getInstance().addListener(mProgressListener);
 
         checkForDownloadCompleted(mContext.getIntent());
         mContext.setIntent(null);
@@ -453,7 +475,7 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
     @Override
     public void onStop() {
         super.onStop();
-        mUpdateHandler.removeCallbacks(mUpdateProgress);
+        DownLoadProgress.getInstance().removeListener(mProgressListener);
         mContext.unregisterReceiver(mReceiver);
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
@@ -518,7 +540,6 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
         if (mDownloading)
             Toast.makeText(mContext, R.string.download_cancelled, Toast.LENGTH_SHORT).show();
         resetDownloadState();
-        mUpdateHandler.removeCallbacks(mUpdateProgress);
         Intent intent = new Intent(mContext, DownLoadService.class);
         intent.setAction(DownLoadService.ACTION_DOWNLOAD);
         intent.putExtra(DownLoadService.DOWNLOAD_TYPE, DownLoadService.PAUSE);
@@ -599,7 +620,7 @@ public class MoKeeExtrasFragment extends PreferenceFragment implements
     @Override
     public void onReady(ItemPreference pref) {
         pref.setOnReadyListener(null);
-        mUpdateHandler.post(mUpdateProgress);
+        refreshProgress();
     }
 
     public void updateLastCheckPreference() {
@@ -20,10 +20,8 @@ package com.mokee.helper.fragments;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedList;
-import java.util.List;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -37,7 +35,6 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.mokee.utils.MoKeeUtils;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Parcelable;
 import android.os.SystemProperties;
 import android.os.UserHandle;
@@ -60,16 +57,15 @@ import android.widget.Toast;
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.R;
 import com.mokee.helper.activities.MoKeeCenter;
-import com.mokee.helper.db.DownLoadDao;
-import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.db.DownLoadRegistry;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.DownLoadInfo;
 import com.mokee.helper.misc.ItemInfo;
-import com.mokee.helper.misc.State;
-import com.mokee.helper.misc.ThreadDownLoadInfo;
+import com.mokee.helper.misc.UpdateCatalog;
 import com.mokee.helper.receiver.DownloadReceiver;
 import com.mokee.helper.service.DownLoadService;
 import com.mokee.helper.service.UpdateCheckService;
+import com.mokee.helper.utils.DownLoadProgress;
 import com.mokee.helper.utils.DownLoader;
 import com.mokee.helper.utils.UpdateFilter;
 import com.mokee.helper.utils.Utils;
@@ -87,6 +83,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
     private static final String KEY_MOKEE_LAST_CHECK = "mokee_last_check";
 
     private boolean mDownloading = false;
+    private long mRenderedGeneration = -1;
     private long mDownloadId;
     private String mFileName;
     private String updateTypeString, MoKeeVersionTypeString;
@@ -112,7 +109,6 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
     private ItemPreference mDownloadingPreference;
     private File mUpdateFolder;
     private ProgressDialog mProgressDialog;
-    private Handler mUpdateHandler = new Handler();
 
     private BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -122,7 +118,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
             if (flag == Constants.INTENT_FLAG_GET_UPDATE) {
                 if (DownloadReceiver.ACTION_DOWNLOAD_STARTED.equals(action)) {
                     mDownloadId = intent.getLongExtra(DownLoadService.DOWNLOAD_ID, -1);
-                    mUpdateHandler.post(mUpdateProgress);
+                    refreshProgress();
                 } else if (UpdateCheckService.ACTION_CHECK_FINISHED.equals(action)) {
                     if (mProgressDialog != null) {
                         mProgressDialog.dismiss();
@@ -135,11 +131,11 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
                                     Toast.LENGTH_LONG).show();
                         }
                     }
-                    updateLayout();
+                    updateLayout(false);
                 } else if (MoKeeCenter.BR_ONNewIntent.equals(action)) {
                     // 唤醒
                     if (intent.getBooleanExtra(UpdateCheckService.EXTRA_UPDATE_LIST_UPDATED, false)) {
-                        updateLayout();
+                        updateLayout(false);
                     }
                     checkForDownloadCompleted(intent);
                 }
@@ -333,7 +329,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
     @Override
     public void onReady(ItemPreference pref) {
         pref.setOnReadyListener(null);
-        mUpdateHandler.post(mUpdateProgress);
+        refreshProgress();
     }
 
     private void setSummaryFromProperty(String preference, String property) {
@@ -345,59 +341,67 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
         }
     }
 
-    // 更新进度条
-    private Runnable mUpdateProgress = new Runnable() {
-        public void run() {
-            if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
+    // 下载进度回调，只在状态或字节数变化时更新
+    private DownLoadProgress.Listener mProgressListener = new DownLoadProgress.Listener() {
+        @Override
+        public void onProgressChanged(String fileUrl, int state, long downloaded, long total) {
+            if (!mDownloading || mDownloadId < 0) {
                 return;
             }
-
-            ProgressBar progressBar = mDownloadingPreference.getProgressBar();
-            if (progressBar == null) {
-                return;
+            DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
+            if (dli != null && fileUrl.equals(dli.getUrl())) {
+                updateProgress(state, downloaded, total);
             }
-            DownLoadInfo dli = DownLoadDao.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
-            int status;
+        }
+    };
 
-            if (dli == null) {
-                // DownloadReceiver has likely already removed the download
-                // from the DB due to failure or MD5 mismatch
-                status = DownLoader.STATUS_PENDING;
-            } else {
-                status = dli.getState();
-            }
-            switch (status) {
-                case DownLoader.STATUS_PENDING:
-                    progressBar.setIndeterminate(true);
-                    break;
-                case DownLoader.STATUS_DOWNLOADING:
-                    List<ThreadDownLoadInfo> threadList = ThreadDownLoadDao.getInstance().getThreadInfoList(dli.getUrl());
-                    int totalBytes = -1;
-                    int downloadedBytes = 0;
-                    for (ThreadDownLoadInfo info : threadList) {
-                        downloadedBytes += info.getDownSize();
-                        totalBytes += info.getEndPos() - info.getStartPos() + 1;
-                    }
+    // 立即刷新进度条
+    private void refreshProgress() {
+        if (!mDownloading || mDownloadId < 0) {
+            return;
+        }
+        DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
+        if (dli == null) {
+            // DownloadReceiver has likely already removed the download
+            // from the DB due to failure or MD5 mismatch
+            updateProgress(DownLoader.STATUS_PENDING, 0, -1);
+        } else if (!DownLoadProgress.getInstance().notifyCurrent(dli.getUrl(), mProgressListener)) {
+            // 下载引擎尚未发布进度，按记录状态显示
+            updateProgress(dli.getState(), 0, -1);
+        }
+    }
 
-                    if (totalBytes < 0) {
-                        progressBar.setIndeterminate(true);
-                    } else {
-                        progressBar.setIndeterminate(false);
-                        progressBar.setMax(totalBytes);
-                        progressBar.setProgress(downloadedBytes);
-                    }
-                    break;
-                case DownLoader.STATUS_ERROR:
-                case DownLoader.STATUS_PAUSED:
-                    mDownloadingPreference.setStyle(ItemPreference.STYLE_NEW);
-                    resetDownloadState();
-                    break;
-            }
-            if (status != DownLoader.STATUS_ERROR) {
-                mUpdateHandler.postDelayed(this, 1500);
-            }
+    // 更新进度条
+    private void updateProgress(int status, long downloadedBytes, long totalBytes) {
+        if (!mDownloading || mDownloadingPreference == null || mDownloadId < 0) {
+            return;
         }
-    };
+
+        ProgressBar progressBar = mDownloadingPreference.getProgressBar();
+        if (progressBar == null) {
+            return;
+        }
+        switch (status) {
+            case DownLoader.STATUS_PENDING:
+                progressBar.setIndeterminate(true);
+                break;
+            case DownLoader.STATUS_DOWNLOADING:
+                if (totalBytes <= 0) {
+                    progressBar.setIndeterminate(true);
+                } else {
+                    progressBar.setIndeterminate(false);
+                    // ProgressBar只支持int，按比例缩放
+                    progressBar.setMax(Utils.PROGRESS_MAX);
+                    progressBar.setProgress(Utils.scaleProgress(downloadedBytes, totalBytes));
+                }
+                break;
+            case DownLoader.STATUS_ERROR:
+            case DownLoader.STATUS_PAUSED:
+                mDownloadingPreference.setStyle(ItemPreference.STYLE_NEW);
+                resetDownloadState();
+                break;
+        }
+    }
 
     private void resetDownloadState() {
         mDownloadId = -1;
@@ -407,7 +411,18 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
     }
 
     private void updateLayout() {
+        updateLayout(true);
+    }
+
+    /**
+     * @param force 本地文件或下载状态可能已变化，列表未变也重新显示
+     */
+    private void updateLayout(boolean force) {
         updateLastCheckPreference();
+        UpdateCatalog.Snapshot snapshot = getCatalog().getUpdates();
+        if (!force && snapshot.getGeneration() == mRenderedGeneration) {
+            return;
+        }
         // Read existing Updates
         LinkedList<String> existingFiles = new LinkedList<String>();
         mUpdateFolder = Utils.makeUpdateFolder();
@@ -423,25 +438,19 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
         Utils.cancelNotification(MoKeeApplication.getContext());
 
         // Build list of updates
-        final LinkedList<ItemInfo> availableUpdates = State.loadMKState(
-                MoKeeApplication.getContext(), State.UPDATE_FILENAME);
+        final LinkedList<ItemInfo> availableUpdates = new LinkedList<ItemInfo>(
+                snapshot.getItems());
 
         if (!mPrefs.getBoolean(Constants.OTA_CHECK_PREF, true)) {
-            Collections.sort(availableUpdates, new Comparator<ItemInfo>() {
-                @Override
-                public int compare(ItemInfo lhs, ItemInfo rhs) {
-                    /* sort by date descending */
-                    int lhsDate = Integer.valueOf(Utils.subBuildDate(lhs.getFileName(), false));
-                    int rhsDate = Integer.valueOf(Utils.subBuildDate(rhs.getFileName(), false));
-                    if (lhsDate == rhsDate) {
-                        return 0;
-                    }
-                    return lhsDate < rhsDate ? 1 : -1;
-                }
-            });
+            Collections.sort(availableUpdates, ItemInfo.NEWEST_FIRST);
         }
         // Update the preference list
         refreshPreferences(availableUpdates);
+        mRenderedGeneration = snapshot.getGeneration();
+    }
+
+    private UpdateCatalog getCatalog() {
+        return ((MoKeeApplication) mContext.getApplicationContext()).getUpdateCatalog();
     }
 
     private void refreshPreferences(LinkedList<ItemInfo> updates) {
@@ -459,13 +468,10 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
             boolean isDownloading = ui.getFileName().equals(mFileName);
             boolean isLocalFile = Utils.isLocaUpdateFile(ui.getFileName(), true);
             int style = 3;
-            if (!mPrefs.getBoolean(Constants.OTA_CHECK_PREF, true)) {
-                isNew = Utils.isNewVersion(ui.getFileName());
-            } else {
-                isNew = Integer.valueOf(Utils.subBuildDate(ui.getFileName(), true)) > Integer.valueOf(Utils.subBuildDate(Utils.getInstalledVersion(), true));
-                if (!isNew) {
-                    break;
-                }
+            isNew = Utils.isNewVersion(ui);
+            if (!isNew && mPrefs.getBoolean(Constants.OTA_CHECK_PREF, true)) {
+                // OTA列表按新到旧排列，之后的条目更旧
+                break;
             }
             if (isDownloading) {
                 // In progress download
@@ -530,8 +536,8 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
         if (mProgressDialog != null) {
             return;
         }
-        State.saveMKState(MoKeeApplication.getContext(), new LinkedList<ItemInfo>(),
-                State.UPDATE_FILENAME);// clear
+        // 只清空界面，列表由检查结果替换；304时保留原列表
+        mRenderedGeneration = -1;
         refreshPreferences(new LinkedList<ItemInfo>());// clear
         // If there is no internet connection, display a message and return.
         if (!MoKeeUtils.isOnline(mContext)) {
@@ -639,7 +645,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
         // Determine if there are any in-progress downloads
         mDownloadId = mPrefs.getLong(DownLoadService.DOWNLOAD_ID, -1);
         if (mDownloadId >= 0) {
-            DownLoadInfo dli = DownLoadDao.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
+            DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(mDownloadId));
             if (dli != null) {
                 int status = dli.getState();
                 if (status == DownLoader.STATUS_PENDING
@@ -662,6 +668,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
         filter.addAction(DownloadReceiver.ACTION_DOWNLOAD_STARTED);
         filter.addAction(MoKeeCenter.BR_ONNewIntent);// 唤醒
         mContext.registerReceiver(mReceiver, filter);
+        DownLoadProgress.getInstance().addListener(mProgressListener);
 
         checkForDownloadCompleted(mContext.getIntent());
         mContext.setIntent(null);
@@ -670,7 +677,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
     @Override
     public void onStop() {
         super.onStop();
-        mUpdateHandler.removeCallbacks(mUpdateProgress);
+        DownLoadProgress.getInstance().removeListener(mProgressListener);
         mContext.unregisterReceiver(mReceiver);
         if (mProgressDialog != null) {
             mProgressDialog.cancel();
@@ -713,7 +720,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
     @Override
     public void onStopDownload(final ItemPreference pref) {
         if (!mDownloading || mFileName == null || mDownloadId < 0) {
-            if (Utils.isNewVersion(pref.getItemInfo().getFileName())) {
+            if (Utils.isNewVersion(pref.getItemInfo())) {
                 pref.setStyle(ItemPreference.STYLE_NEW);
             } else {
                 pref.setStyle(ItemPreference.STYLE_OLD);
@@ -729,7 +736,7 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
                     public void onClick(DialogInterface dialog, int which) {
                         // Set the preference back to new style
                         if (!mPrefs.getBoolean(Constants.OTA_CHECK_PREF, true)) {
-                            if (Utils.isNewVersion(pref.getItemInfo().getFileName())) {
+                            if (Utils.isNewVersion(pref.getItemInfo())) {
                                 pref.setStyle(ItemPreference.STYLE_NEW);
                             } else {
                                 pref.setStyle(ItemPreference.STYLE_OLD);
@@ -747,7 +754,6 @@ public class MoKeeUpdaterFragment extends PreferenceFragment implements OnPrefer
         if (mDownloading)
             Toast.makeText(mContext, R.string.download_cancelled, Toast.LENGTH_SHORT).show();
         resetDownloadState();
-        mUpdateHandler.removeCallbacks(mUpdateProgress);
         Intent intent = new Intent(mContext, DownLoadService.class);
         intent.setAction(DownLoadService.ACTION_DOWNLOAD);
         intent.putExtra(DownLoadService.DOWNLOAD_TYPE, DownLoadService.PAUSE);
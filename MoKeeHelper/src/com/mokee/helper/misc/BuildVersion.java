@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.misc;
+
+import java.util.Locale;
+
+import com.mokee.helper.utils.Utils;
+
+/**
+ * 解析后的版本信息
+ *
+ * Parsed once from a build or file name such as
+ * MK44.2-device-141020-NIGHTLY.zip or OTA-MK44.2-device-141010-141020.zip.
+ * The natural order is by build date, then version.
+ */
+public final class BuildVersion implements Comparable<BuildVersion> {
+
+    private static BuildVersion sInstalled;
+    private static boolean sInstalledParsed = false;
+
+    private final String mName;
+    private final boolean mOta;
+    private final float mVersion;
+    // 去掉"20"前缀的完整日期
+    private final int mDate;
+    // 日期前6位
+    private final int mShortDate;
+    private final int mDateLength;
+    private final String mChannel;
+
+    private BuildVersion(String name, boolean ota, float version, int date, int shortDate,
+            int dateLength, String channel) {
+        mName = name;
+        mOta = ota;
+        mVersion = version;
+        mDate = date;
+        mShortDate = shortDate;
+        mDateLength = dateLength;
+        mChannel = channel;
+    }
+
+    /**
+     * @return 无法识别时返回null
+     */
+    public static BuildVersion parse(String name) {
+        if (name == null) {
+            return null;
+        }
+        String[] strs = name.split("-");
+        boolean ota = name.toLowerCase(Locale.ENGLISH).startsWith("ota");
+        int dateIndex = ota ? 4 : 2;
+        if (strs.length <= dateIndex) {
+            return null;
+        }
+        String versionStr = strs[ota ? 1 : 0];
+        if (versionStr.length() <= 2) {
+            return null;
+        }
+        float version;
+        try {
+            version = Float.parseFloat(versionStr.substring(2));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        int date = 0, shortDate = 0;
+        String dateStr = stripCentury(strs[dateIndex]);
+        if (isDigits(dateStr)) {
+            try {
+                date = Integer.parseInt(dateStr);
+                shortDate = Integer.parseInt(dateStr.length() > 6
+                        ? dateStr.substring(0, 6) : dateStr);
+            } catch (NumberFormatException e) {
+                date = shortDate = 0;
+            }
+        }
+        // 与安装版本比较时按第三段的日期长度判断是否同一格式
+        int dateLength = stripCentury(strs[2]).length();
+
+        String channel = null;
+        if (!ota) {
+            channel = name.substring(name.lastIndexOf("-") + 1);
+            int dot = channel.indexOf('.');
+            if (dot >= 0) {
+                channel = channel.substring(0, dot);
+            }
+            channel = channel.toLowerCase(Locale.ENGLISH);
+        }
+        return new BuildVersion(name, ota, version, date, shortDate, dateLength, channel);
+    }
+
+    /**
+     * 已安装的版本，进程内只解析一次
+     */
+    public static synchronized BuildVersion installed() {
+        if (!sInstalledParsed) {
+            sInstalled = parse(Utils.getInstalledVersion());
+            sInstalledParsed = true;
+        }
+        return sInstalled;
+    }
+
+    private static String stripCentury(String date) {
+        return date.startsWith("20") ? date.substring(2) : date;
+    }
+
+    private static boolean isDigits(String str) {
+        if (str.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public boolean isOta() {
+        return mOta;
+    }
+
+    public float getVersion() {
+        return mVersion;
+    }
+
+    public int getDate() {
+        return mDate;
+    }
+
+    public int getShortDate() {
+        return mShortDate;
+    }
+
+    /**
+     * @return nightly、release等，OTA包为null
+     */
+    public String getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * 日期更新且版本不低于对方；日期格式不同时只比较前6位
+     */
+    public boolean isNewerThan(BuildVersion other) {
+        boolean sameFormat = mDateLength == other.mDateLength;
+        int date = sameFormat ? mDate : mShortDate;
+        int otherDate = sameFormat ? other.mDate : other.mShortDate;
+        return date > otherDate && mVersion >= other.mVersion;
+    }
+
+    /**
+     * 是否比已安装版本新，清单过滤和列表显示共用；已安装版本无法识别时视为新版本
+     */
+    public boolean isNewerThanInstalled() {
+        BuildVersion installed = installed();
+        return installed == null || isNewerThan(installed);
+    }
+
+    @Override
+    public int compareTo(BuildVersion another) {
+        if (mShortDate != another.mShortDate) {
+            return mShortDate < another.mShortDate ? -1 : 1;
+        }
+        if (mDate != another.mDate) {
+            return mDate < another.mDate ? -1 : 1;
+        }
+        int result = Float.compare(mVersion, another.mVersion);
+        if (result != 0) {
+            return result;
+        }
+        return mName.compareTo(another.mName);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BuildVersion)) {
+            return false;
+        }
+        return mName.equals(((BuildVersion) o).mName);
+    }
+
+    @Override
+    public int hashCode() {
+        return mName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
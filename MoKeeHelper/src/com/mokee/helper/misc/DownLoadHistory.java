@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.misc;
+
+/**
+ * 一次下载的历史记录
+ *
+ * One row per download session, from start() until every segment has
+ * stopped. The outcome is a DownLoader status; verification time stays -1
+ * until the completion service has checked the MD5.
+ */
+public class DownLoadHistory {
+    private String url;
+    private String host;// 实际下载的镜像
+    private long fileSize;
+    private long bytes;// 本次下载的字节数
+    private long startTime;// wall clock, ms
+    private long duration;// ms
+    private long peakSpeed;// B/s
+    private int retries;
+    private int segments;
+    private long verifyTime = -1;// ms
+    private int outcome;
+
+    public DownLoadHistory(String url, String host, long fileSize, long bytes, long startTime,
+            long duration, long peakSpeed, int retries, int segments, int outcome) {
+        this.url = url;
+        this.host = host;
+        this.fileSize = fileSize;
+        this.bytes = bytes;
+        this.startTime = startTime;
+        this.duration = duration;
+        this.peakSpeed = peakSpeed;
+        this.retries = retries;
+        this.segments = segments;
+        this.outcome = outcome;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * 平均速度 B/s
+     */
+    public long getAverageSpeed() {
+        return duration > 0 ? bytes * 1000 / duration : 0;
+    }
+
+    public long getPeakSpeed() {
+        return peakSpeed;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public long getVerifyTime() {
+        return verifyTime;
+    }
+
+    public void setVerifyTime(long verifyTime) {
+        this.verifyTime = verifyTime;
+    }
+
+    public int getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(int outcome) {
+        this.outcome = outcome;
+    }
+
+    @Override
+    public String toString() {
+        return "DownLoadHistory [url=" + url + ", host=" + host + ", fileSize=" + fileSize
+                + ", bytes=" + bytes + ", duration=" + duration + ", peakSpeed=" + peakSpeed
+                + ", retries=" + retries + ", segments=" + segments + ", verifyTime="
+                + verifyTime + ", outcome=" + outcome + "]";
+    }
+}
@@ -57,7 +57,7 @@ public class DownLoadInfo {
         return fileSize;
     }
 
-    public void setFileSize(int fileSize) {
+    public void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
 
@@ -65,7 +65,7 @@ public class DownLoadInfo {
         return complete;
     }
 
-    public void setComplete(int complete) {
+    public void setComplete(long complete) {
         this.complete = complete;
     }
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.misc;
+
+/**
+ * 下载历史汇总
+ *
+ * @see com.mokee.helper.db.DownLoadHistoryDao
+ */
+public class DownLoadStats {
+    private String key;// 分组值（镜像或分段数），总计时为null
+    private int count;
+    private int completed;
+    private int failed;
+    private long totalBytes;
+    private long averageDuration;// ms
+    private long averageSpeed;// B/s, weighted by bytes
+    private long peakSpeed;// B/s
+    private float averageRetries;
+    private long averageVerifyTime;// ms, -1 if nothing was verified
+
+    public DownLoadStats(String key, int count, int completed, int failed, long totalBytes,
+            long averageDuration, long averageSpeed, long peakSpeed, float averageRetries,
+            long averageVerifyTime) {
+        this.key = key;
+        this.count = count;
+        this.completed = completed;
+        this.failed = failed;
+        this.totalBytes = totalBytes;
+        this.averageDuration = averageDuration;
+        this.averageSpeed = averageSpeed;
+        this.peakSpeed = peakSpeed;
+        this.averageRetries = averageRetries;
+        this.averageVerifyTime = averageVerifyTime;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCompleted() {
+        return completed;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getAverageDuration() {
+        return averageDuration;
+    }
+
+    public long getAverageSpeed() {
+        return averageSpeed;
+    }
+
+    public long getPeakSpeed() {
+        return peakSpeed;
+    }
+
+    public float getAverageRetries() {
+        return averageRetries;
+    }
+
+    public long getAverageVerifyTime() {
+        return averageVerifyTime;
+    }
+
+    @Override
+    public String toString() {
+        return "DownLoadStats [key=" + key + ", count=" + count + ", completed=" + completed
+                + ", failed=" + failed + ", totalBytes=" + totalBytes + ", averageDuration="
+                + averageDuration + ", averageSpeed=" + averageSpeed + ", peakSpeed="
+                + peakSpeed + ", averageRetries=" + averageRetries + ", averageVerifyTime="
+                + averageVerifyTime + "]";
+    }
+}
@@ -19,6 +19,7 @@ package com.mokee.helper.misc;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.Comparator;
 
 import android.content.Context;
 import android.os.Parcel;
@@ -38,6 +39,8 @@ public class ItemInfo implements Parcelable, Serializable {
     private String mDescription;
     private String mCheckflag;
 
+    private transient BuildVersion mBuildVersion;
+
     private ItemInfo() {
         // Use the builder
     }
@@ -74,10 +77,36 @@ public class ItemInfo implements Parcelable, Serializable {
         return mCheckflag;
     }
 
+    /**
+     * @return 文件名无法识别时返回null
+     */
+    public BuildVersion getBuildVersion() {
+        if (mBuildVersion == null) {
+            // 旧格式缓存反序列化时未解析
+            mBuildVersion = BuildVersion.parse(mFileName);
+        }
+        return mBuildVersion;
+    }
+
     public File getChangeLogFile(Context context) {
         return new File(context.getCacheDir(), mFileName + ".html");
     }
 
+    /**
+     * 按日期从新到旧排序，无法识别的排在最后
+     */
+    public static final Comparator<ItemInfo> NEWEST_FIRST = new Comparator<ItemInfo>() {
+        @Override
+        public int compare(ItemInfo lhs, ItemInfo rhs) {
+            BuildVersion lhsVersion = lhs.getBuildVersion();
+            BuildVersion rhsVersion = rhs.getBuildVersion();
+            if (lhsVersion == null || rhsVersion == null) {
+                return lhsVersion == rhsVersion ? 0 : (lhsVersion == null ? 1 : -1);
+            }
+            return rhsVersion.compareTo(lhsVersion);
+        }
+    };
+
     public static final Parcelable.Creator<ItemInfo> CREATOR = new Parcelable.Creator<ItemInfo>() {
         public ItemInfo createFromParcel(Parcel in) {
             return new ItemInfo(in);
@@ -112,6 +141,7 @@ public class ItemInfo implements Parcelable, Serializable {
         mChangelogUrl = in.readString();
         mDescription = in.readString();
         mCheckflag = in.readString();
+        mBuildVersion = BuildVersion.parse(mFileName);
     }
 
     public static class Builder {
@@ -169,6 +199,7 @@ public class ItemInfo implements Parcelable, Serializable {
             info.mDownloadUrl = mDownloadUrl;
             info.mDescription = mDescription;
             info.mCheckflag = mCheckflag;
+            info.mBuildVersion = BuildVersion.parse(mFileName);
             return info;
         }
     }
@@ -20,38 +20,78 @@ package com.mokee.helper.misc;
 import android.content.Context;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.LinkedList;
 
+/**
+ * 更新列表缓存
+ *
+ * Binary layout, big endian:
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    item count
+ * item   7 strings each: int byte length (-1 for null), UTF-8 bytes
+ * </pre>
+ * Files are written to a temp file and renamed over the old one, and read
+ * through a read-only mapping. Files in the old ObjectOutputStream format
+ * are read once and rewritten in this format.
+ */
 public class State {
 
     private static final String TAG = "State";
     public static final String UPDATE_FILENAME = "mkupdater.state";
     public static final String EXTRAS_FILENAME = "mkextras.state";
 
+    private static final int MAGIC = 0x4d4b5354; // "MKST"
+    private static final int VERSION = 1;
+    // ObjectOutputStream.STREAM_MAGIC
+    private static final short LEGACY_MAGIC = (short) 0xaced;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     public static void saveMKState(Context context, LinkedList<ItemInfo> availableUpdates,
             String fileName) {
-        ObjectOutputStream oos = null;
+        File f = new File(context.getCacheDir(), fileName);
+        File tmp = new File(context.getCacheDir(), fileName + ".tmp");
         FileOutputStream fos = null;
         try {
-            File f = new File(context.getCacheDir(), fileName);
-            fos = new FileOutputStream(f);
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(availableUpdates);
-            oos.flush();
+            fos = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(availableUpdates.size());
+            for (ItemInfo info : availableUpdates) {
+                writeString(out, info.getMd5Sum());
+                writeString(out, info.getFileName());
+                writeString(out, info.getFileSize());
+                writeString(out, info.getDownloadUrl());
+                writeString(out, info.getChangelogUrl());
+                writeString(out, info.getDescription());
+                writeString(out, info.getCheckflag());
+            }
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+            if (!tmp.renameTo(f)) {
+                throw new IOException("Unable to rename " + tmp + " to " + f);
+            }
         } catch (IOException e) {
             Log.e(TAG, "Exception on saving instance state", e);
+            tmp.delete();
         } finally {
             try {
-                if (oos != null) {
-                    oos.close();
-                }
                 if (fos != null) {
                     fos.close();
                 }
@@ -61,14 +101,94 @@ public class State {
         }
     }
 
-    //
-    @SuppressWarnings("unchecked")
     public static LinkedList<ItemInfo> loadMKState(Context context, String fileName) {
+        LinkedList<ItemInfo> availableUpdates = new LinkedList<ItemInfo>();
+        File f = new File(context.getCacheDir(), fileName);
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            FileChannel channel = fis.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() >= 2 && buffer.getShort(0) == LEGACY_MAGIC) {
+                fis.close();
+                fis = null;
+                availableUpdates = loadLegacyState(f);
+                // 一次性迁移到新格式
+                saveMKState(context, availableUpdates, fileName);
+                return availableUpdates;
+            }
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Bad magic");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown version " + version);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                availableUpdates.add(new ItemInfo.Builder()
+                        .setMD5Sum(readString(buffer))
+                        .setFileName(readString(buffer))
+                        .setFileSize(readString(buffer))
+                        .setDownloadUrl(readString(buffer))
+                        .setChangelog(readString(buffer))
+                        .setDescription(readString(buffer))
+                        .setCheckflag(readString(buffer)).build());
+            }
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unexpected state file format", e);
+            availableUpdates.clear();
+        } catch (BufferUnderflowException e) {
+            Log.d(TAG, "Truncated state file", e);
+            availableUpdates.clear();
+        } catch (FileNotFoundException e) {
+            Log.i(TAG, "No state info stored");
+        } catch (IOException e) {
+            Log.e(TAG, "Exception on loading state", e);
+        } finally {
+            try {
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException e) {
+                // ignored, can't do anything anyway
+            }
+        }
+        return availableUpdates;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * 读取旧的ObjectOutputStream格式
+     */
+    @SuppressWarnings("unchecked")
+    private static LinkedList<ItemInfo> loadLegacyState(File f) {
         LinkedList<ItemInfo> availableUpdates = new LinkedList<ItemInfo>();
         ObjectInputStream ois = null;
         FileInputStream fis = null;
         try {
-            File f = new File(context.getCacheDir(), fileName);
             fis = new FileInputStream(f);
             ois = new ObjectInputStream(fis);
 
@@ -78,12 +198,8 @@ public class State {
             }
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "Unable to load stored class", e);
-        } catch (IllegalArgumentException e) {
-            Log.d(TAG, "Unexpected state file format", e);
-        } catch (FileNotFoundException e) {
-            Log.i(TAG, "No state info stored");
         } catch (IOException e) {
-            Log.e(TAG, "Exception on loading state", e);
+            Log.e(TAG, "Exception on loading legacy state", e);
         } finally {
             try {
                 if (ois != null) {
@@ -24,9 +24,9 @@ package com.mokee.helper.misc;
  */
 public class ThreadDownLoadInfo {
     private int threadId;
-    private long startPos;// 开始点
-    private long endPos;// 结束点
-    private long downSize;// 已下载数据
+    private volatile long startPos;// 开始点
+    private volatile long endPos;// 结束点，可能被拆分缩短
+    private volatile long downSize;// 已下载数据
     private String url;
 
     public ThreadDownLoadInfo(int threadId, long startPos, long endPos, long downSize, String url) {
@@ -60,7 +60,7 @@ public class ThreadDownLoadInfo {
         return startPos;
     }
 
-    public void setStartPos(int startPos) {
+    public void setStartPos(long startPos) {
         this.startPos = startPos;
     }
 
@@ -68,7 +68,7 @@ public class ThreadDownLoadInfo {
         return endPos;
     }
 
-    public void setEndPos(int endPos) {
+    public void setEndPos(long endPos) {
         this.endPos = endPos;
     }
 
@@ -76,7 +76,7 @@ public class ThreadDownLoadInfo {
         return downSize;
     }
 
-    public void setDownSize(int downSize) {
+    public void setDownSize(long downSize) {
         this.downSize = downSize;
     }
 
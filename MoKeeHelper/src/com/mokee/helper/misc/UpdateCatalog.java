@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+
+/**
+ * 更新及扩展列表的内存缓存
+ *
+ * Holds the last update and extras lists as immutable snapshots. Each new
+ * list gets a new generation, so a view can tell whether it already shows
+ * the current list. The on-disk state is read only when a list is first
+ * asked for. Changes swap the snapshot at once and are written to disk in
+ * order on a single background thread, so callers on the main thread never
+ * wait for the fsync.
+ */
+public class UpdateCatalog {
+
+    private final Context mContext;
+    private Snapshot mUpdates;
+    private Snapshot mExtras;
+    private long mGeneration = 0;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    /**
+     * 不可变的列表快照
+     */
+    public static class Snapshot {
+        private final List<ItemInfo> mItems;
+        private final long mGeneration;
+
+        private Snapshot(List<ItemInfo> items, long generation) {
+            mItems = Collections.unmodifiableList(new ArrayList<ItemInfo>(items));
+            mGeneration = generation;
+        }
+
+        public List<ItemInfo> getItems() {
+            return mItems;
+        }
+
+        public long getGeneration() {
+            return mGeneration;
+        }
+    }
+
+    public UpdateCatalog(Context context) {
+        mContext = context;
+    }
+
+    public synchronized Snapshot getUpdates() {
+        if (mUpdates == null) {
+            // 冷启动，从磁盘读取
+            mUpdates = new Snapshot(State.loadMKState(mContext, State.UPDATE_FILENAME),
+                    ++mGeneration);
+        }
+        return mUpdates;
+    }
+
+    public synchronized Snapshot getExtras() {
+        if (mExtras == null) {
+            mExtras = new Snapshot(State.loadMKState(mContext, State.EXTRAS_FILENAME),
+                    ++mGeneration);
+        }
+        return mExtras;
+    }
+
+    /**
+     * @param persisted 写入磁盘后在后台线程调用，可为null
+     */
+    public synchronized Snapshot setUpdates(LinkedList<ItemInfo> updates, Runnable persisted) {
+        mUpdates = new Snapshot(updates, ++mGeneration);
+        persist(mUpdates, State.UPDATE_FILENAME, persisted);
+        return mUpdates;
+    }
+
+    /**
+     * @param persisted 写入磁盘后在后台线程调用，可为null
+     */
+    public synchronized Snapshot setExtras(LinkedList<ItemInfo> extras, Runnable persisted) {
+        mExtras = new Snapshot(extras, ++mGeneration);
+        persist(mExtras, State.EXTRAS_FILENAME, persisted);
+        return mExtras;
+    }
+
+    private void persist(final Snapshot snapshot, final String fileName,
+            final Runnable persisted) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                State.saveMKState(mContext, new LinkedList<ItemInfo>(snapshot.getItems()),
+                        fileName);
+                if (persisted != null) {
+                    persisted.run();
+                }
+            }
+        });
+    }
+}
@@ -33,7 +33,7 @@ import android.widget.Toast;
 
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.R;
-import com.mokee.helper.db.DownLoadDao;
+import com.mokee.helper.db.DownLoadRegistry;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.DownLoadInfo;
 import com.mokee.helper.misc.ItemInfo;
@@ -64,12 +64,14 @@ public class DownloadReceiver extends BroadcastReceiver {
         } else if (Intent.ACTION_SHUTDOWN.equals(action)) {
             String downloadUrl = prefs.getString(DownLoadService.DOWNLOAD_URL, "");
             if (!TextUtils.isEmpty(downloadUrl)) {
-                DownLoadDao.getInstance().updataState(downloadUrl, DownLoader.STATUS_PAUSED);
+                DownLoadRegistry.getInstance().updataState(downloadUrl, DownLoader.STATUS_PAUSED);
             }
             String downloadExtrasUrl = prefs.getString(DownLoadService.DOWNLOAD_EXTRAS_URL, "");
             if (!TextUtils.isEmpty(downloadExtrasUrl)) {
-                DownLoadDao.getInstance().updataState(downloadExtrasUrl, DownLoader.STATUS_PAUSED);
+                DownLoadRegistry.getInstance().updataState(downloadExtrasUrl, DownLoader.STATUS_PAUSED);
             }
+            // 关机前写入暂停状态，避免重启后记录停留在下载中
+            DownLoadRegistry.getInstance().flush();
             prefs.edit().remove(DownLoadService.DOWNLOAD_ID).remove(DownLoadService.DOWNLOAD_MD5)
                     .remove(DownLoadService.DOWNLOAD_URL).remove(DownLoadService.DOWNLOAD_EXTRAS_ID)
                     .remove(DownLoadService.DOWNLOAD_EXTRAS_MD5).remove(DownLoadService.DOWNLOAD_EXTRAS_URL).apply();
@@ -133,7 +135,7 @@ public class DownloadReceiver extends BroadcastReceiver {
         // stripped off when the download completes
         String fullFilePath = directory.getAbsolutePath() + "/" + ui.getFileName() + ".partial";
 
-        DownLoadInfo dli = DownLoadDao.getInstance().getDownLoadInfoByUrl(ui.getDownloadUrl());
+        DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfoByUrl(ui.getDownloadUrl());
 
         long downloadId;
         if (dli != null) {
@@ -142,8 +144,8 @@ public class DownloadReceiver extends BroadcastReceiver {
             downloadId = System.currentTimeMillis();
         }
 
-        if (DownLoadDao.getInstance().isHasInfos(ui.getDownloadUrl())) {
-            DownLoadDao.getInstance().updataState(ui.getDownloadUrl(), DownLoader.STATUS_PENDING);
+        if (DownLoadRegistry.getInstance().isHasInfos(ui.getDownloadUrl())) {
+            DownLoadRegistry.getInstance().updataState(ui.getDownloadUrl(), DownLoader.STATUS_PENDING);
         }
         Intent intentBroadcast = new Intent(ACTION_DOWNLOAD_STARTED);
         intentBroadcast.putExtra(DownLoadService.DOWNLOAD_FLAG, flag);
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.requests;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.RetryPolicy;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.mokee.helper.utils.BackoffPolicy;
+
+/**
+ * Volley重试策略，与分段下载共用退避规则
+ *
+ * Volley would retry immediately from {@link #retry(VolleyError)} on its
+ * network thread. Instead of sleeping there, a retryable failure is passed
+ * to the error listener with the backoff delay kept in
+ * {@link #takeRetryDelay()}; the listener sends a new request with this
+ * policy once the delay is over.
+ */
+public class BackoffRetryPolicy implements RetryPolicy {
+    private final int timeout;
+    private final BackoffPolicy.Retry retry;
+    private int retryCount = 0;
+    private volatile long retryDelay = -1;
+
+    public BackoffRetryPolicy(int timeout, BackoffPolicy policy) {
+        this.timeout = timeout;
+        this.retry = policy.newRetry(null);
+    }
+
+    @Override
+    public int getCurrentTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public int getCurrentRetryCount() {
+        return retryCount;
+    }
+
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+        int failure;
+        NetworkResponse response = error.networkResponse;
+        if (response != null) {
+            if (!BackoffPolicy.isRetryableStatus(response.statusCode)) {
+                throw error;
+            }
+            failure = BackoffPolicy.FAILURE_STATUS;
+        } else if (error instanceof NoConnectionError) {
+            failure = BackoffPolicy.FAILURE_CONNECT;
+        } else if (error instanceof TimeoutError) {
+            failure = BackoffPolicy.FAILURE_READ;
+        } else {
+            failure = BackoffPolicy.FAILURE_CONNECT;
+        }
+        long delay = retry.next(failure);
+        if (delay < 0) {
+            throw error;
+        }
+        retryCount++;
+        retryDelay = delay;
+        throw error;
+    }
+
+    /**
+     * 取出上次失败后的重试延迟
+     *
+     * @return 不再重试时返回-1
+     */
+    public long takeRetryDelay() {
+        long delay = retryDelay;
+        retryDelay = -1;
+        return delay;
+    }
+}
@@ -17,45 +17,45 @@
 
 package com.mokee.helper.requests;
 
+import java.io.Reader;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.LinkedList;
 import java.util.Map;
 
-import com.android.volley.AuthFailureError;
 import com.android.volley.Response;
-import com.android.volley.toolbox.StringRequest;
-import com.mokee.helper.MoKeeApplication;
+import com.mokee.helper.misc.ItemInfo;
+import com.mokee.helper.misc.State;
 import com.mokee.helper.utils.Utils;
 
-public class ExtrasRequest extends StringRequest {
-    private String mUserAgent;
+public class ExtrasRequest extends ManifestRequest {
 
-    public ExtrasRequest(int method, String url, String userAgent,
-            Response.Listener<String> listener, Response.ErrorListener errorListener) {
-        super(method, url, listener, errorListener);
-        mUserAgent = userAgent;
+    public ExtrasRequest(String url, String userAgent, ManifestRequest.Listener listener,
+            Response.ErrorListener errorListener) {
+        super(url, getQueryParams(), userAgent, listener, errorListener);
     }
 
     @Override
-    public Map<String, String> getHeaders() throws AuthFailureError {
-        HashMap<String, String> headers = new HashMap<String, String>();
-        if (mUserAgent != null) {
-            headers.put("User-Agent", mUserAgent);
-        }
-        headers.put("Cache-Control", "no-cache");
-
-        Locale mLocale = MoKeeApplication.getContext().getResources().getConfiguration().locale;
-        String language = mLocale.getLanguage();
-        String country = mLocale.getCountry();
-        headers.put("Accept-Language", (language + "-" + country).toLowerCase(Locale.ENGLISH));
-
-        return headers;
+    public String getManifestKey() {
+        return "extras_" + Utils.getDeviceType() + "_" + getMoKeeVersion();
     }
 
     @Override
-    protected Map<String, String> getParams() throws AuthFailureError {
+    public String getStateFileName() {
+        return State.EXTRAS_FILENAME;
+    }
+
+    @Override
+    protected LinkedList<ItemInfo> parseManifest(Reader in) {
+        return ManifestParser.parseExtras(in);
+    }
+
+    private static Map<String, String> getQueryParams() {
         Map<String, String> params = new HashMap<String, String>();
-        params.put("mk_version", String.valueOf(Utils.getInstalledVersion().split("-")[0]));
+        params.put("mk_version", getMoKeeVersion());
         return params;
     }
+
+    private static String getMoKeeVersion() {
+        return String.valueOf(Utils.getInstalledVersion().split("-")[0]);
+    }
 }
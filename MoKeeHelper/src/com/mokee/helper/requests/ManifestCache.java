@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.requests;
+
+import java.io.File;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.mokee.helper.misc.Constants;
+
+/**
+ * 更新清单的条件请求缓存
+ *
+ * The parsed list itself lives only in {@link com.mokee.helper.misc.UpdateCatalog}
+ * and its state file. Next to each state file the ETag/Last-Modified it was
+ * served with are kept, together with the manifest key they belong to.
+ * Validators are only sent for the same key and while the state file is on
+ * disk, so a 304 can always be answered from the catalog.
+ */
+public class ManifestCache {
+    private static final String TAG = "ManifestCache";
+
+    private static final String PREF_KEY = "manifest_key_";
+    private static final String PREF_ETAG = "manifest_etag_";
+    private static final String PREF_LAST_MODIFIED = "manifest_last_modified_";
+    private static final String PREF_REQUESTS = "manifest_requests";
+    private static final String PREF_HITS = "manifest_hits";
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(Constants.DOWNLOADER_PREF, 0);
+    }
+
+    /**
+     * 添加If-None-Match/If-Modified-Since
+     *
+     * @param fileName 保存该清单的State文件
+     * @return 是否添加了校验值
+     */
+    public static boolean addConditionalHeaders(Context context, String fileName, String key,
+            Map<String, String> headers) {
+        SharedPreferences prefs = getPrefs(context);
+        if (!TextUtils.equals(key, prefs.getString(PREF_KEY + fileName, null))
+                || !new File(context.getCacheDir(), fileName).exists()) {
+            return false;
+        }
+        String eTag = prefs.getString(PREF_ETAG + fileName, null);
+        String lastModified = prefs.getString(PREF_LAST_MODIFIED + fileName, null);
+        if (!TextUtils.isEmpty(eTag)) {
+            headers.put("If-None-Match", eTag);
+        }
+        if (!TextUtils.isEmpty(lastModified)) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+        return !TextUtils.isEmpty(eTag) || !TextUtils.isEmpty(lastModified);
+    }
+
+    /**
+     * 保存校验值，列表已写入fileName之后调用
+     */
+    public static void save(Context context, String fileName, String key, String eTag,
+            String lastModified) {
+        SharedPreferences.Editor editor = getPrefs(context).edit();
+        editor.putString(PREF_KEY + fileName, key);
+        if (TextUtils.isEmpty(eTag)) {
+            editor.remove(PREF_ETAG + fileName);
+        } else {
+            editor.putString(PREF_ETAG + fileName, eTag);
+        }
+        if (TextUtils.isEmpty(lastModified)) {
+            editor.remove(PREF_LAST_MODIFIED + fileName);
+        } else {
+            editor.putString(PREF_LAST_MODIFIED + fileName, lastModified);
+        }
+        editor.apply();
+    }
+
+    public static void clear(Context context, String fileName) {
+        getPrefs(context).edit().remove(PREF_KEY + fileName).remove(PREF_ETAG + fileName)
+                .remove(PREF_LAST_MODIFIED + fileName).apply();
+    }
+
+    /**
+     * 统计命中率
+     *
+     * @param hit 服务器返回304且使用了缓存
+     */
+    public static void recordResult(Context context, boolean hit) {
+        SharedPreferences prefs = getPrefs(context);
+        int requests = prefs.getInt(PREF_REQUESTS, 0) + 1;
+        int hits = prefs.getInt(PREF_HITS, 0) + (hit ? 1 : 0);
+        prefs.edit().putInt(PREF_REQUESTS, requests).putInt(PREF_HITS, hits).apply();
+        Log.d(TAG, (hit ? "hit" : "miss") + ", hit rate " + hits + "/" + requests);
+    }
+
+    public static float getHitRate(Context context) {
+        SharedPreferences prefs = getPrefs(context);
+        int requests = prefs.getInt(PREF_REQUESTS, 0);
+        return requests == 0 ? 0 : (float) prefs.getInt(PREF_HITS, 0) / requests;
+    }
+}
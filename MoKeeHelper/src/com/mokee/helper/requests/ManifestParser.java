@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.requests;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedList;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.mokee.helper.misc.BuildVersion;
+import com.mokee.helper.misc.ItemInfo;
+
+/**
+ * 流式解析更新清单
+ *
+ * Reads the manifest token by token straight into {@link ItemInfo}, without
+ * building a JSONObject tree first. Unknown fields are skipped and entries
+ * missing a required field are dropped. A malformed manifest yields the
+ * entries read so far.
+ */
+public class ManifestParser {
+    private static final String TAG = "ManifestParser";
+
+    /**
+     * 解析更新清单
+     *
+     * @param allChannels 全部渠道时为{"RELEASE":[...],"NIGHTLY":[...]}，否则为数组
+     * @param newerOnly 只需要比已安装版本新的条目；单渠道清单按新到旧排列，遇到旧版本即停止
+     */
+    public static LinkedList<ItemInfo> parseUpdates(Reader in, boolean allChannels,
+            boolean newerOnly) {
+        return parseUpdates(in, allChannels, newerOnly, BuildVersion.installed());
+    }
+
+    /**
+     * @param installed 比较用的已安装版本，为null时全部视为新版本
+     */
+    static LinkedList<ItemInfo> parseUpdates(Reader in, boolean allChannels,
+            boolean newerOnly, BuildVersion installed) {
+        LinkedList<ItemInfo> updates = new LinkedList<ItemInfo>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            if (allChannels) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (("RELEASE".equals(name) || "NIGHTLY".equals(name))
+                            && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        // 各渠道分别排序，不能提前停止
+                        readItems(reader, updates, false, false, installed);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                readItems(reader, updates, false, newerOnly, installed);
+            }
+            Log.d(TAG, "Got update JSON data with " + updates.size() + " entries");
+        } catch (IOException e) {
+            Log.e(TAG, "Error in JSON result", e);
+        } catch (RuntimeException e) {
+            // IllegalStateException/NumberFormatException on unexpected tokens
+            Log.e(TAG, "Error in JSON result", e);
+        } finally {
+            close(reader);
+        }
+        return updates;
+    }
+
+    /**
+     * 解析扩展清单 {"gms":[...],"application":[...]}
+     */
+    public static LinkedList<ItemInfo> parseExtras(Reader in) {
+        LinkedList<ItemInfo> extras = new LinkedList<ItemInfo>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (("gms".equals(name) || "application".equals(name))
+                        && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    readItems(reader, extras, true, false, null);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            Log.e(TAG, "Error in JSON result", e);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error in JSON result", e);
+        } finally {
+            close(reader);
+        }
+        return extras;
+    }
+
+    /**
+     * 读取条目数组
+     *
+     * @return 是否读完整个数组，提前停止时为false
+     */
+    private static boolean readItems(JsonReader reader, LinkedList<ItemInfo> items,
+            boolean extras, boolean newerOnly, BuildVersion installed) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            ItemInfo info = readItem(reader, extras);
+            if (info == null) {
+                continue;
+            }
+            if (newerOnly && !isNewVersion(info, installed)) {
+                // 之后的条目更旧，不再读取
+                return false;
+            }
+            items.add(info);
+        }
+        reader.endArray();
+        return true;
+    }
+
+    private static ItemInfo readItem(JsonReader reader, boolean extras) throws IOException {
+        String fileName = null, fileSize = null, downloadUrl = null, md5 = null;
+        String changelog = null, description = null, checkflag = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            if ("name".equals(name)) {
+                fileName = reader.nextString();
+            } else if ("length".equals(name)) {
+                fileSize = reader.nextString();
+            } else if ("md5".equals(name)) {
+                md5 = reader.nextString();
+            } else if (!extras && "rom".equals(name)) {
+                downloadUrl = reader.nextString();
+            } else if (!extras && "log".equals(name)) {
+                changelog = reader.nextString();
+            } else if (extras && "download".equals(name)) {
+                downloadUrl = reader.nextString();
+            } else if (extras && "changelog".equals(name)) {
+                changelog = reader.nextString();
+            } else if (extras && "description".equals(name)) {
+                description = reader.nextString();
+            } else if (extras && "checkflag".equals(name)) {
+                checkflag = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (fileName == null || fileSize == null || downloadUrl == null || md5 == null
+                || changelog == null || (extras && (description == null || checkflag == null))) {
+            Log.w(TAG, "Skipping incomplete entry " + fileName);
+            return null;
+        }
+        ItemInfo.Builder builder = new ItemInfo.Builder()
+                .setFileName(fileName)
+                .setFileSize(fileSize)
+                .setDownloadUrl(downloadUrl)
+                .setMD5Sum(md5)
+                .setChangelog(changelog);
+        if (extras) {
+            builder.setDescription(description).setCheckflag(checkflag);
+        }
+        return builder.build();
+    }
+
+    private static boolean isNewVersion(ItemInfo info, BuildVersion installed) {
+        BuildVersion version = info.getBuildVersion();
+        // 无法识别的文件名，保留
+        return version == null || installed == null || version.isNewerThan(installed);
+    }
+
+    private static void close(JsonReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // ignored, can't do anything anyway
+        }
+    }
+}
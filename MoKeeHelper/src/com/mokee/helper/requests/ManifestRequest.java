@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.requests;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+
+import android.net.Uri;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.mokee.helper.MoKeeApplication;
+import com.mokee.helper.misc.ItemInfo;
+
+/**
+ * 更新清单请求
+ *
+ * Fetched with GET, the parameters in the query string, so the validators
+ * of the cached manifest for {@link #getManifestKey()} mean the same to the
+ * server and to any cache on the way. The body is parsed on the network
+ * thread, streaming from the response bytes. A 304 is delivered as a null list with {@link #isNotModified()} set;
+ * the listener then reuses the cached list.
+ */
+public abstract class ManifestRequest extends Request<LinkedList<ItemInfo>> {
+    private String mUserAgent;
+    private Listener mListener;
+    private boolean mNotModified = false;
+    private String mETag;
+    private String mLastModified;
+
+    /**
+     * 清单回调，主线程调用
+     */
+    public interface Listener {
+        void onManifestResponse(ManifestRequest request, LinkedList<ItemInfo> items);
+    }
+
+    public ManifestRequest(String url, Map<String, String> params, String userAgent,
+            Listener listener, Response.ErrorListener errorListener) {
+        super(Method.GET, buildUrl(url, params), errorListener);
+        mUserAgent = userAgent;
+        mListener = listener;
+        // 由ManifestCache按清单参数缓存，不用Volley的URL缓存
+        setShouldCache(false);
+    }
+
+    /**
+     * 清单缓存键：设备、渠道及OTA
+     */
+    public abstract String getManifestKey();
+
+    /**
+     * 保存清单解析结果的State文件
+     */
+    public abstract String getStateFileName();
+
+    /**
+     * 解析清单，在网络线程调用
+     */
+    protected abstract LinkedList<ItemInfo> parseManifest(Reader in);
+
+    private static String buildUrl(String url, Map<String, String> params) {
+        Uri.Builder builder = Uri.parse(url).buildUpon();
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            builder.appendQueryParameter(param.getKey(), param.getValue());
+        }
+        return builder.build().toString();
+    }
+
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        if (mUserAgent != null) {
+            headers.put("User-Agent", mUserAgent);
+        }
+
+        Locale mLocale = MoKeeApplication.getContext().getResources().getConfiguration().locale;
+        String language = mLocale.getLanguage();
+        String country = mLocale.getCountry();
+        headers.put("Accept-Language", (language + "-" + country).toLowerCase(Locale.ENGLISH));
+
+        if (!ManifestCache.addConditionalHeaders(MoKeeApplication.getContext(),
+                getStateFileName(), getManifestKey(), headers)) {
+            // 没有校验值时才绕过中间缓存
+            headers.put("Cache-Control", "no-cache");
+        }
+        return headers;
+    }
+
+    @Override
+    protected Response<LinkedList<ItemInfo>> parseNetworkResponse(NetworkResponse response) {
+        if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            mNotModified = true;
+            return Response.success(null, null);
+        }
+        mETag = getHeader(response, "ETag");
+        mLastModified = getHeader(response, "Last-Modified");
+        Reader in;
+        try {
+            in = new InputStreamReader(new ByteArrayInputStream(response.data),
+                    HttpHeaderParser.parseCharset(response.headers));
+        } catch (UnsupportedEncodingException e) {
+            in = new InputStreamReader(new ByteArrayInputStream(response.data));
+        }
+        return Response.success(parseManifest(in), null);
+    }
+
+    @Override
+    protected void deliverResponse(LinkedList<ItemInfo> items) {
+        if (mListener != null) {
+            mListener.onManifestResponse(this, items);
+        }
+    }
+
+    private static String getHeader(NetworkResponse response, String name) {
+        if (response.headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+}
@@ -17,51 +17,73 @@
 
 package com.mokee.helper.requests;
 
+import java.io.Reader;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.LinkedList;
 import java.util.Map;
 
 import android.content.SharedPreferences;
 import android.text.TextUtils;
 
-import com.android.volley.AuthFailureError;
 import com.android.volley.Response;
-import com.android.volley.toolbox.StringRequest;
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.fragments.MoKeeUpdaterFragment;
 import com.mokee.helper.misc.Constants;
+import com.mokee.helper.misc.ItemInfo;
+import com.mokee.helper.misc.State;
 import com.mokee.helper.utils.Utils;
 
-public class UpdatesRequest extends StringRequest {
-    private String mUserAgent;
+public class UpdatesRequest extends ManifestRequest {
 
-    public UpdatesRequest(int method, String url, String userAgent,
-            Response.Listener<String> listener, Response.ErrorListener errorListener) {
-        super(method, url, listener, errorListener);
-        mUserAgent = userAgent;
+    public UpdatesRequest(String url, String userAgent, ManifestRequest.Listener listener,
+            Response.ErrorListener errorListener) {
+        super(url, getQueryParams(), userAgent, listener, errorListener);
     }
 
     @Override
-    public Map<String, String> getHeaders() throws AuthFailureError {
-        HashMap<String, String> headers = new HashMap<String, String>();
-        if (mUserAgent != null) {
-            headers.put("User-Agent", mUserAgent);
-        }
-        headers.put("Cache-Control", "no-cache");
-
-        Locale mLocale = MoKeeApplication.getContext().getResources().getConfiguration().locale;
-        String language = mLocale.getLanguage();
-        String country = mLocale.getCountry();
-        headers.put("Accept-Language", (language + "-" + country).toLowerCase(Locale.ENGLISH));
+    public String getManifestKey() {
+        SharedPreferences prefs = MoKeeApplication.getContext().getSharedPreferences(Constants.DOWNLOADER_PREF, 0);
+        boolean isOTA = prefs.getBoolean(Constants.OTA_CHECK_PREF, true);
+        // 包含全部请求参数：已安装版本变化后旧的304不能再用
+        return "updates_" + Utils.getDeviceType() + "_"
+                + (isOTA ? "ota" : String.valueOf(getUpdateType(prefs))) + "_"
+                + Utils.getInstalledVersion() + "_" + Utils.getBuildUser();
+    }
 
-        return headers;
+    @Override
+    public String getStateFileName() {
+        return State.UPDATE_FILENAME;
     }
 
     @Override
-    protected Map<String, String> getParams() throws AuthFailureError {
+    protected LinkedList<ItemInfo> parseManifest(Reader in) {
+        SharedPreferences prefs = MoKeeApplication.getContext().getSharedPreferences(Constants.DOWNLOADER_PREF, 0);
+        boolean isOTA = prefs.getBoolean(Constants.OTA_CHECK_PREF, true);
+        int updateType = prefs.getInt(Constants.UPDATE_TYPE_PREF, 0);
+        // OTA只需要比当前版本新的增量包
+        return ManifestParser.parseUpdates(in, !isOTA && updateType == Constants.UPDATE_TYPE_ALL,
+                isOTA);
+    }
+
+    private static Map<String, String> getQueryParams() {
         Map<String, String> params = new HashMap<String, String>();
-        // Get the type of update we should check for
         SharedPreferences prefs = MoKeeApplication.getContext().getSharedPreferences(Constants.DOWNLOADER_PREF, 0);
+        int updateType = getUpdateType(prefs);
+        boolean isOTA = prefs.getBoolean(Constants.OTA_CHECK_PREF, true);
+        params.put("device_name", Utils.getDeviceType());
+        params.put("device_version", Utils.getInstalledVersion());
+        params.put("build_user", Utils.getBuildUser());
+        if (!isOTA) {
+            params.put("device_officail", String.valueOf(updateType));
+            params.put("rom_all", "0");
+        }
+        return params;
+    }
+
+    /**
+     * Get the type of update we should check for
+     */
+    private static int getUpdateType(SharedPreferences prefs) {
         String MoKeeVersionType = Utils.getMoKeeVersionType();
         boolean isNightly = TextUtils.equals(MoKeeVersionType, "nightly");
         boolean isExperimental = TextUtils.equals(MoKeeVersionType, "experimental");
@@ -79,14 +101,6 @@ public class UpdatesRequest extends StringRequest {
             prefs.edit().putInt(Constants.UPDATE_TYPE_PREF, 0).apply();
             updateType = 0;
         }
-        boolean isOTA = prefs.getBoolean(Constants.OTA_CHECK_PREF, true);
-        params.put("device_name", Utils.getDeviceType());
-        params.put("device_version", Utils.getInstalledVersion());
-        params.put("build_user", Utils.getBuildUser());
-        if (!isOTA) {
-            params.put("device_officail", String.valueOf(updateType));
-            params.put("rom_all", "0");
-        }
-        return params;
+        return updateType;
     }
 }
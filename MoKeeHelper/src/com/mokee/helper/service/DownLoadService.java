@@ -32,10 +32,11 @@ import android.text.format.DateUtils;
 import android.util.Log;
 
 import com.mokee.helper.R;
-import com.mokee.helper.db.DownLoadDao;
+import com.mokee.helper.db.DownLoadRegistry;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.DownLoadInfo;
 import com.mokee.helper.receiver.DownloadReceiver;
+import com.mokee.helper.utils.DownLoadExecutor;
 import com.mokee.helper.utils.DownLoader;
 
 public class DownLoadService extends NonStopIntentService {
@@ -65,6 +66,9 @@ public class DownLoadService extends NonStopIntentService {
     public static final int STOP = 7;
 
     private static Map<String, DownLoader> downloaders = new HashMap<String, DownLoader>();
+    // 所有下载共享的分段任务执行器
+    private static DownLoadExecutor executor = new DownLoadExecutor(
+            DownLoadExecutor.DEFAULT_MAX_WORKERS);
     private static Map<Integer, NotificationCompat.Builder> notifications = new HashMap<Integer, NotificationCompat.Builder>();// 通知队列
     private static int notificationID = Constants.INTENT_FLAG_GET_UPDATE;
     private NotificationManager manager;
@@ -91,11 +95,11 @@ public class DownLoadService extends NonStopIntentService {
                     downloader = downloaders.get(url);
                     if (downloader == null) {
                         downloader = new DownLoader(url, filePath, handler,
-                                System.currentTimeMillis(), this);
+                                System.currentTimeMillis(), this, executor);
                         downloaders.put(url, downloader);
-                        if (!DownLoadDao.getInstance().isHasInfos(url)) {
+                        if (!DownLoadRegistry.getInstance().isHasInfos(url)) {
                             // init
-                            DownLoadDao.getInstance().saveInfo(
+                            DownLoadRegistry.getInstance().saveInfo(
                                     new DownLoadInfo(url, flag, String.valueOf(download_id),
                                             filePath, filePath.substring(filePath.lastIndexOf("/") + 1,
                                                     filePath.length()), 0, DownLoader.STATUS_PENDING));
@@ -103,7 +107,7 @@ public class DownLoadService extends NonStopIntentService {
                     }
                     if (downloader.isDownLoading())
                         return;
-                    DownLoadDao.getInstance().updataState(url, DownLoader.STATUS_DOWNLOADING);
+                    DownLoadRegistry.getInstance().updataState(url, DownLoader.STATUS_DOWNLOADING);
                     DownLoadInfo loadInfo = downloader.getDownLoadInfo();
                     if (loadInfo != null) {
                         // 开始下载
@@ -210,8 +214,8 @@ public class DownLoadService extends NonStopIntentService {
                                 }
                             }
                             if (di.allDownSize > 0 && di.getFileSize() > 0) {
-                                updateNotification(msg.arg2, Integer.valueOf(String.valueOf(di.allDownSize * 100
-                                        / di.getFileSize())), time);
+                                updateNotification(msg.arg2, (int) (di.allDownSize * 100
+                                        / di.getFileSize()), time);
                             }
                         } catch (Exception e) {
                             e.printStackTrace();
@@ -227,8 +231,8 @@ public class DownLoadService extends NonStopIntentService {
                         notifications.remove(di.getNotificationID());
                         downloaders.remove(url);
                     }
-                    DownLoadDao.getInstance().updataState(url, msg.what);
-                    dli = DownLoadDao.getInstance().getDownLoadInfoByUrl(url);
+                    DownLoadRegistry.getInstance().updataState(url, msg.what);
+                    dli = DownLoadRegistry.getInstance().getDownLoadInfoByUrl(url);
                     if (dli != null) {
                         intent = new Intent();
                         intent.setAction(ACTION_DOWNLOAD_COMPLETE);
@@ -249,8 +253,8 @@ public class DownLoadService extends NonStopIntentService {
                         notifications.remove(di.getNotificationID());
                         downloaders.remove(url);
                     }
-                    DownLoadDao.getInstance().updataState(url, msg.what);
-                    dli = DownLoadDao.getInstance().getDownLoadInfoByUrl(url);
+                    DownLoadRegistry.getInstance().updataState(url, msg.what);
+                    dli = DownLoadRegistry.getInstance().getDownLoadInfoByUrl(url);
                     intent = new Intent();
                     intent.setAction(ACTION_DOWNLOAD_COMPLETE);
                     intent.putExtra(DOWNLOAD_ID, Long.valueOf(dli.getDownID()));
@@ -21,13 +21,15 @@ import java.io.File;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.util.Log;
 
 import com.mokee.helper.MoKeeApplication;
 import com.mokee.helper.R;
 import com.mokee.helper.db.DownLoadDao;
-import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.db.DownLoadHistoryDao;
+import com.mokee.helper.db.DownLoadRegistry;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.DownLoadInfo;
 import com.mokee.helper.receiver.DownloadNotifier;
@@ -60,7 +62,7 @@ public class DownloadCompleteIntentService extends IntentService {
             return;
         }
 
-        DownLoadInfo dli = DownLoadDao.getInstance().getDownLoadInfo(String.valueOf(id));
+        DownLoadInfo dli = DownLoadRegistry.getInstance().getDownLoadInfo(String.valueOf(id));
         if (dli == null) {
             return;
         }
@@ -79,8 +81,14 @@ public class DownloadCompleteIntentService extends IntentService {
             File updateFile = new File(completedFileFullPath);
             partialFile.renameTo(updateFile);
 
-            // Start the MD5 check of the downloaded file
-            if (MD5.checkMD5(downloadedMD5, updateFile)) {
+            // Check the MD5 computed while downloading, or of the whole file
+            byte[] digestState = DownLoadDao.getInstance().getDigest(dli.getUrl());
+            long verifyStart = SystemClock.elapsedRealtime();
+            boolean verified = MD5.checkMD5(downloadedMD5, updateFile, digestState);
+            DownLoadHistoryDao.getInstance().updataVerify(dli.getUrl(),
+                    SystemClock.elapsedRealtime() - verifyStart,
+                    verified ? DownLoader.STATUS_COMPLETE : DownLoader.STATUS_FAILED);
+            if (verified) {
              // We passed. Bring the main app to the foreground and trigger download completed
                 updateIntent.putExtra(UpdateCheckService.EXTRA_FINISHED_DOWNLOAD_ID, id);
                 updateIntent.putExtra(UpdateCheckService.EXTRA_FINISHED_DOWNLOAD_PATH, completedFileFullPath);
@@ -94,12 +102,11 @@ public class DownloadCompleteIntentService extends IntentService {
             }
 
             //delete info
-            DownLoadDao.getInstance().delete(dli.getUrl());
-            ThreadDownLoadDao.getInstance().delete(dli.getUrl());
+            DownLoadRegistry.getInstance().delete(dli.getUrl());
         } else if (status == DownLoader.STATUS_ERROR || status == DownLoader.STATUS_DELETE) {
             // The download failed, reset
             displayErrorResult(updateIntent, R.string.unable_to_download_file);
-            DownLoadDao.getInstance().updataState(dli.getUrl(), DownLoader.STATUS_PAUSED);
+            DownLoadRegistry.getInstance().updataState(dli.getUrl(), DownLoader.STATUS_PAUSED);
         }
     }
 
@@ -19,14 +19,9 @@ package com.mokee.helper.service;
 
 import java.net.URI;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.LinkedList;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.app.IntentService;
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -34,15 +29,15 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.mokee.utils.MoKeeUtils;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.android.volley.DefaultRetryPolicy;
-import com.android.volley.Request;
 import com.android.volley.Response;
-import com.android.volley.Response.Listener;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
 
@@ -51,14 +46,18 @@ import com.mokee.helper.R;
 import com.mokee.helper.activities.MoKeeCenter;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.ItemInfo;
-import com.mokee.helper.misc.State;
+import com.mokee.helper.misc.UpdateCatalog;
 import com.mokee.helper.receiver.DownloadReceiver;
+import com.mokee.helper.requests.BackoffRetryPolicy;
 import com.mokee.helper.requests.ExtrasRequest;
+import com.mokee.helper.requests.ManifestCache;
+import com.mokee.helper.requests.ManifestRequest;
 import com.mokee.helper.requests.UpdatesRequest;
+import com.mokee.helper.utils.BackoffPolicy;
 import com.mokee.helper.utils.Utils;
 
 public class UpdateCheckService extends IntentService
-        implements Response.ErrorListener, Listener<String> {
+        implements Response.ErrorListener, ManifestRequest.Listener {
 
     private static final String TAG = "UpdateCheckService";
 
@@ -83,10 +82,15 @@ public class UpdateCheckService extends IntentService
     // max. number of updates listed in the extras notification
     private static final int EXTRAS_NOTIF_UPDATE_COUNT = 4;
     private int flag;
+    private BackoffRetryPolicy mRetryPolicy;
+    // 退避重试在主线程排队，取消检查时一并移除
+    private static final Handler sRetryHandler = new Handler(Looper.getMainLooper());
 
-    // DefaultRetryPolicy values for Volley
+    // BackoffRetryPolicy values for Volley
     private static final int UPDATE_REQUEST_TIMEOUT = 5000; // 5 seconds
     private static final int UPDATE_REQUEST_MAX_RETRIES = 3;
+    private static final long UPDATE_REQUEST_BASE_DELAY = 500; // ms
+    private static final long UPDATE_REQUEST_MAX_DELAY = 8000; // ms
 
     public UpdateCheckService() {
         super("UpdateCheckService");
@@ -96,6 +100,7 @@ public class UpdateCheckService extends IntentService
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (TextUtils.equals(intent.getAction(), ACTION_CANCEL_CHECK)) {
             ((MoKeeApplication) getApplicationContext()).getQueue().cancelAll(TAG);
+            sRetryHandler.removeCallbacksAndMessages(TAG);
             return START_NOT_STICKY;
         }
 
@@ -110,7 +115,7 @@ public class UpdateCheckService extends IntentService
             return;
         }
         flag = intent.getIntExtra(DownLoadService.DOWNLOAD_FLAG, Constants.INTENT_FLAG_GET_UPDATE);
-        getAvailableUpdates(flag);
+        getAvailableUpdates(flag, newRetryPolicy());
     }
 
     private void recordAvailableUpdates(LinkedList<ItemInfo> availableUpdates,
@@ -174,20 +179,7 @@ public class UpdateCheckService extends IntentService
                 // ota暂时不进行排序
                 if (!getSharedPreferences(Constants.DOWNLOADER_PREF, 0).getBoolean(
                         Constants.OTA_CHECK_PREF, true)) {
-                    Collections.sort(realUpdates, new Comparator<ItemInfo>() {
-                        @Override
-                        public int compare(ItemInfo lhs, ItemInfo rhs) {
-                            /* sort by date descending */
-                            int lhsDate = Integer.valueOf(Utils.subBuildDate(lhs.getFileName(),
-                                    false));
-                            int rhsDate = Integer.valueOf(Utils.subBuildDate(rhs.getFileName(),
-                                    false));
-                            if (lhsDate == rhsDate) {
-                                return 0;
-                            }
-                            return lhsDate < rhsDate ? 1 : -1;
-                        }
-                    });
+                    Collections.sort(realUpdates, ItemInfo.NEWEST_FIRST);
                 }
             }
             Notification.InboxStyle inbox = new Notification.InboxStyle(builder)
@@ -231,7 +223,8 @@ public class UpdateCheckService extends IntentService
     /**
      * 获取更新数据
      */
-    private void getAvailableUpdates(int flag) {
+    private void getAvailableUpdates(int flag, BackoffRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
         // Get the actual ROM Update Server URL
         URI updateServerUri = null;
         switch (flag) {
@@ -242,22 +235,20 @@ public class UpdateCheckService extends IntentService
                 } else {
                     updateServerUri = URI.create(getString(R.string.conf_update_ota_server_url_def));
                 }
-                UpdatesRequest updateRequest = new UpdatesRequest(Request.Method.POST,
-                        updateServerUri.toASCIIString(), Utils.getUserAgentString(this), this, this);
+                UpdatesRequest updateRequest = new UpdatesRequest(updateServerUri.toASCIIString(),
+                        Utils.getUserAgentString(this), this, this);
                 // Improve request error tolerance 
-                updateRequest.setRetryPolicy(new DefaultRetryPolicy(UPDATE_REQUEST_TIMEOUT,
-                        UPDATE_REQUEST_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+                updateRequest.setRetryPolicy(retryPolicy);
                 // Set the tag for the request, reuse logging tag
                 updateRequest.setTag(TAG);
                 ((MoKeeApplication) getApplicationContext()).getQueue().add(updateRequest);
                 break;
             case Constants.INTENT_FLAG_GET_EXTRAS:
                 updateServerUri = URI.create(getString(R.string.conf_update_extras_server_url_def));
-                ExtrasRequest extrasRequest = new ExtrasRequest(Request.Method.POST,
-                        updateServerUri.toASCIIString(), Utils.getUserAgentString(this), this, this);
+                ExtrasRequest extrasRequest = new ExtrasRequest(updateServerUri.toASCIIString(),
+                        Utils.getUserAgentString(this), this, this);
                 // Improve request error tolerance 
-                extrasRequest.setRetryPolicy(new DefaultRetryPolicy(UPDATE_REQUEST_TIMEOUT,
-                        UPDATE_REQUEST_MAX_RETRIES, DefaultRetryPolicy.DEFAULT_BACKOFF_MULT));
+                extrasRequest.setRetryPolicy(retryPolicy);
                 // Set the tag for the request, reuse logging tag
                 extrasRequest.setTag(TAG);
                 ((MoKeeApplication) getApplicationContext()).getQueue().add(extrasRequest);
@@ -266,112 +257,28 @@ public class UpdateCheckService extends IntentService
     }
 
     /**
-     * 判断解析更新数据
-     * 
-     * @param jsonString
-     * @param updateType
-     * @param isOTA
-     * @return
+     * 更新检查的退避重试
      */
-    private LinkedList<ItemInfo> parseUpdatesJSONObject(String jsonString, int updateType) {
-        LinkedList<ItemInfo> updates = new LinkedList<ItemInfo>();
-
-        boolean isOTA = getSharedPreferences(Constants.DOWNLOADER_PREF, 0).getBoolean(Constants.OTA_CHECK_PREF, true);
-        try {
-            JSONArray[] jsonArrays = new JSONArray[2];
-            // 判断全部
-            if (!isOTA && updateType == Constants.UPDATE_TYPE_ALL) {
-                JSONObject jsonObject = new JSONObject(jsonString);
-                if (jsonObject.has("RELEASE")) {
-                    jsonArrays[0] = jsonObject.getJSONArray("RELEASE");
-                }
-                if (jsonObject.has("NIGHTLY")) {
-                    jsonArrays[1] = jsonObject.getJSONArray("NIGHTLY");
-                }
-            } else {
-                JSONArray updateList = new JSONArray(jsonString);
-                jsonArrays[0] = updateList;
-                int length = updateList.length();
-                Log.d(TAG, "Got update JSON data with " + length + " entries");
-            }
-            for (int i = 0; i < jsonArrays.length; i++) {
-                JSONArray jsonArray = jsonArrays[i];
-                if (jsonArray != null) {
-                    for (int j = 0; j < jsonArray.length(); j++) {
-                        if (jsonArray.isNull(j)) {
-                            continue;
-                        }
-                        JSONObject item = jsonArray.getJSONObject(j);
-                        ItemInfo info = parseUpdatesJSON(item);
-                        if (info != null) {
-                            updates.add(info);
-                        }
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error in JSON result", e);
-        }
-        return updates;
-    }
-
-    private ItemInfo parseUpdatesJSON(JSONObject obj) throws JSONException {
-        ItemInfo mii = new ItemInfo.Builder()
-                .setFileName(obj.getString("name"))
-                .setFileSize(obj.getString("length"))
-                .setDownloadUrl(obj.getString("rom"))
-                .setMD5Sum(obj.getString("md5"))
-                .setChangelog(obj.getString("log")).build();
-        return mii;
-    }
-
-    private LinkedList<ItemInfo> parseExtrasJSONObject(String jsonString) {
-        LinkedList<ItemInfo> updates = new LinkedList<ItemInfo>();
-        try {
-            JSONArray[] jsonArrays = new JSONArray[2];
-            // 判断全部
-            JSONObject jsonObject = new JSONObject(jsonString);
-            if (jsonObject.has("gms")) {
-                jsonArrays[0] = jsonObject.getJSONArray("gms");
-            }
-            if (jsonObject.has("application")) {
-                jsonArrays[1] = jsonObject.getJSONArray("application");
-            }
-            for (int i = 0; i < jsonArrays.length; i++) {
-                JSONArray jsonArray = jsonArrays[i];
-                if (jsonArray != null) {
-                    for (int j = 0; j < jsonArray.length(); j++) {
-                        if (jsonArray.isNull(j)) {
-                            continue;
-                        }
-                        JSONObject item = jsonArray.getJSONObject(j);
-                        ItemInfo info = parseExtrasJSON(item);
-                        if (info != null) {
-                            updates.add(info);
-                        }
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Error in JSON result", e);
-        }
-        return updates;
-    }
-
-    private ItemInfo parseExtrasJSON(JSONObject obj) throws JSONException {
-        ItemInfo mii = new ItemInfo.Builder()
-                .setFileName(obj.getString("name"))
-                .setFileSize(obj.getString("length"))
-                .setDownloadUrl(obj.getString("download"))
-                .setMD5Sum(obj.getString("md5"))
-                .setChangelog(obj.getString("changelog"))
-                .setDescription(obj.getString("description"))
-                .setCheckflag(obj.getString("checkflag")).build();
-        return mii;
+    private BackoffRetryPolicy newRetryPolicy() {
+        return new BackoffRetryPolicy(UPDATE_REQUEST_TIMEOUT, new BackoffPolicy(
+                UPDATE_REQUEST_BASE_DELAY, UPDATE_REQUEST_MAX_DELAY, UPDATE_REQUEST_MAX_RETRIES,
+                UPDATE_REQUEST_MAX_RETRIES, UPDATE_REQUEST_MAX_RETRIES));
     }
 
     @Override
     public void onErrorResponse(VolleyError volleyError) {
+        long delay = mRetryPolicy != null ? mRetryPolicy.takeRetryDelay() : -1;
+        if (delay >= 0) {
+            // 延迟后用同一重试策略重新请求，不占用Volley网络线程
+            final BackoffRetryPolicy retryPolicy = mRetryPolicy;
+            sRetryHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    getAvailableUpdates(flag, retryPolicy);
+                }
+            }, TAG, SystemClock.uptimeMillis() + delay);
+            return;
+        }
         VolleyLog.e("Error: ", volleyError.getMessage());
         VolleyLog.e("Error type: " + volleyError.toString());
         Intent intent = new Intent(ACTION_CHECK_FINISHED);
@@ -379,28 +286,49 @@ public class UpdateCheckService extends IntentService
     }
 
     @Override
-    public void onResponse(String response) {
-        int updateType = getSharedPreferences(Constants.DOWNLOADER_PREF, 0).getInt(Constants.UPDATE_TYPE_PREF, 0);
+    public void onManifestResponse(ManifestRequest request, LinkedList<ItemInfo> updates) {
         Intent intent = new Intent(ACTION_CHECK_FINISHED);
-        LinkedList<ItemInfo> updates = null;
+        UpdateCatalog catalog = ((MoKeeApplication) getApplicationContext()).getUpdateCatalog();
+        if (request.isNotModified()) {
+            // 清单未变化，列表保持不变
+            ManifestCache.recordResult(this, true);
+            updates = new LinkedList<ItemInfo>(flag == Constants.INTENT_FLAG_GET_EXTRAS
+                    ? catalog.getExtras().getItems() : catalog.getUpdates().getItems());
+        } else {
+            ManifestCache.recordResult(this, false);
+            // 新列表落盘之前不能再发送旧的校验值
+            final String fileName = request.getStateFileName();
+            final String key = request.getManifestKey();
+            final String eTag = request.getETag();
+            final String lastModified = request.getLastModified();
+            ManifestCache.clear(this, fileName);
+            Runnable persisted = new Runnable() {
+                @Override
+                public void run() {
+                    ManifestCache.save(MoKeeApplication.getContext(), fileName, key, eTag,
+                            lastModified);
+                }
+            };
+            if (flag == Constants.INTENT_FLAG_GET_EXTRAS) {
+                catalog.setExtras(updates, persisted);
+            } else {
+                catalog.setUpdates(updates, persisted);
+            }
+        }
         switch (flag) {
             case Constants.INTENT_FLAG_GET_UPDATE:
-                updates = parseUpdatesJSONObject(response, updateType);
                 intent.putExtra(DownLoadService.DOWNLOAD_FLAG, Constants.INTENT_FLAG_GET_UPDATE);
                 intent.putExtra(EXTRA_UPDATE_COUNT, updates.size());
                 intent.putExtra(EXTRA_REAL_UPDATE_COUNT, updates.size());
                 intent.putExtra(EXTRA_NEW_UPDATE_COUNT, updates.size());
                 recordAvailableUpdates(updates, intent);
-                State.saveMKState(this, updates, State.UPDATE_FILENAME);
                 break;
             case Constants.INTENT_FLAG_GET_EXTRAS:
-                updates = parseExtrasJSONObject(response);
                 intent.putExtra(DownLoadService.DOWNLOAD_FLAG, Constants.INTENT_FLAG_GET_EXTRAS);
                 intent.putExtra(EXTRA_UPDATE_COUNT, updates.size());
                 intent.putExtra(EXTRA_REAL_UPDATE_COUNT, updates.size());
                 intent.putExtra(EXTRA_NEW_UPDATE_COUNT, updates.size());
                 recordAvailableUpdates(updates, intent);
-                State.saveMKState(this, updates, State.EXTRAS_FILENAME);
                 break;
         }
     }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 重试退避策略
+ *
+ * Exponential backoff with full jitter. Connect, read and HTTP status
+ * failures are counted against separate budgets, and every retry also draws
+ * from a {@link Budget} that can be shared by all segments of one download.
+ * Callers loop on {@link Retry#next(int)} instead of recursing.
+ */
+public class BackoffPolicy {
+    public static final int FAILURE_CONNECT = 0;
+    public static final int FAILURE_READ = 1;
+    public static final int FAILURE_STATUS = 2;
+
+    public static final long DEFAULT_BASE_DELAY = 1000; // ms
+    public static final long DEFAULT_MAX_DELAY = 30000; // ms
+    public static final int DEFAULT_CONNECT_RETRIES = 4;
+    public static final int DEFAULT_READ_RETRIES = 6;
+    public static final int DEFAULT_STATUS_RETRIES = 3;
+    // 单个下载所有分段合计的重试次数
+    public static final int DEFAULT_DOWNLOAD_BUDGET = 30;
+
+    private static final Random sRandom = new Random();
+
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int[] limits;
+
+    public BackoffPolicy() {
+        this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_CONNECT_RETRIES, DEFAULT_READ_RETRIES,
+                DEFAULT_STATUS_RETRIES);
+    }
+
+    public BackoffPolicy(long baseDelay, long maxDelay, int connectRetries, int readRetries,
+            int statusRetries) {
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.limits = new int[] {
+                connectRetries, readRetries, statusRetries
+        };
+    }
+
+    /**
+     * HTTP状态码是否值得重试
+     */
+    public static boolean isRetryableStatus(int code) {
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    /**
+     * 新的一次重试过程
+     *
+     * @param budget 共享重试预算，可为null
+     */
+    public Retry newRetry(Budget budget) {
+        return new Retry(budget);
+    }
+
+    /**
+     * 重试预算
+     */
+    public static class Budget {
+        private final int retries;
+        private final AtomicInteger remaining;
+
+        public Budget(int retries) {
+            this.retries = retries;
+            remaining = new AtomicInteger(retries);
+        }
+
+        boolean consume() {
+            while (true) {
+                int current = remaining.get();
+                if (current <= 0) {
+                    return false;
+                }
+                if (remaining.compareAndSet(current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        public int getRemaining() {
+            return Math.max(0, remaining.get());
+        }
+
+        /**
+         * 已用掉的重试次数
+         */
+        public int getUsed() {
+            return retries - getRemaining();
+        }
+    }
+
+    /**
+     * 非正常HTTP状态
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int code;
+
+        public StatusException(int code) {
+            super("Unexpected response code " + code);
+            this.code = code;
+        }
+
+        public int getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * 一次请求的重试状态
+     */
+    public class Retry {
+        private final Budget budget;
+        private final int[] counts = new int[3];
+        private int attempt = 0;
+
+        Retry(Budget budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * 记录一次失败
+         *
+         * @param failure FAILURE_CONNECT, FAILURE_READ or FAILURE_STATUS
+         * @return 下次重试前的等待时间，不再重试时返回-1
+         */
+        public long next(int failure) {
+            if (counts[failure] >= limits[failure]) {
+                return -1;
+            }
+            if (budget != null && !budget.consume()) {
+                return -1;
+            }
+            counts[failure]++;
+            long cap = baseDelay << Math.min(attempt++, 16);
+            if (cap <= 0 || cap > maxDelay) {
+                cap = maxDelay;
+            }
+            // Full jitter spreads retries of parallel segments apart
+            synchronized (sRandom) {
+                return (long) (sRandom.nextDouble() * cap);
+            }
+        }
+
+        /**
+         * 有新进度后重新计算连续失败
+         */
+        public void onProgress() {
+            attempt = 0;
+            counts[FAILURE_CONNECT] = 0;
+            counts[FAILURE_READ] = 0;
+            counts[FAILURE_STATUS] = 0;
+        }
+
+        public int getAttempt() {
+            return attempt;
+        }
+    }
+}
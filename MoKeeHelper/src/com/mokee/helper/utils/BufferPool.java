@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载缓冲池
+ *
+ * Reusable read buffers in power-of-two size classes from {@link #MIN_SIZE}
+ * to {@link #MAX_SIZE}. Each class keeps at most a fixed number of idle
+ * buffers, so the pool never retains more than the workers can use at once.
+ * Buffers are heap backed: the HTTP stream can only be read into a byte[],
+ * and the positional file write takes the array without another copy.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    // 每块读取的目标耗时，据此调整块大小
+    private static final long TARGET_FILL_TIME = 100; // ms
+
+    private final List<LinkedList<ByteBuffer>> free = new ArrayList<LinkedList<ByteBuffer>>();
+    private final int maxIdlePerClass;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    public BufferPool(int maxIdlePerClass) {
+        this.maxIdlePerClass = maxIdlePerClass;
+        for (int size = MIN_SIZE; size <= MAX_SIZE; size <<= 1) {
+            free.add(new LinkedList<ByteBuffer>());
+        }
+    }
+
+    /**
+     * 获取容量不小于size的缓冲区
+     */
+    public ByteBuffer acquire(int size) {
+        int index = sizeClass(size);
+        acquired.incrementAndGet();
+        LinkedList<ByteBuffer> list = free.get(index);
+        synchronized (list) {
+            ByteBuffer buffer = list.poll();
+            if (buffer != null) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        int capacity = MIN_SIZE << index;
+        allocated.incrementAndGet();
+        allocatedBytes.addAndGet(capacity);
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 归还缓冲区
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int index = sizeClass(buffer.capacity());
+        if ((MIN_SIZE << index) != buffer.capacity()) {
+            return; // not one of ours
+        }
+        LinkedList<ByteBuffer> list = free.get(index);
+        synchronized (list) {
+            if (list.size() < maxIdlePerClass) {
+                list.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * 根据填满一块的耗时调整块大小
+     *
+     * @param current 当前块大小
+     * @param fillTime 填满该块的耗时(ms)
+     * @return 新的块大小
+     */
+    public static int adaptChunkSize(int current, long fillTime) {
+        if (fillTime < TARGET_FILL_TIME / 2 && current < MAX_SIZE) {
+            return current << 1;
+        }
+        if (fillTime > TARGET_FILL_TIME * 2 && current > MIN_SIZE) {
+            return current >> 1;
+        }
+        return current;
+    }
+
+    private static int sizeClass(int size) {
+        int index = 0;
+        int capacity = MIN_SIZE;
+        while (capacity < size && capacity < MAX_SIZE) {
+            capacity <<= 1;
+            index++;
+        }
+        return index;
+    }
+
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool [acquired=" + acquired.get() + ", allocated=" + allocated.get()
+                + ", allocatedBytes=" + allocatedBytes.get() + "]";
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 自适应连接数
+ *
+ * Starts with a few range connections and adds one per sampling window for
+ * as long as aggregate throughput keeps improving. A plateau undoes the last
+ * step and stops probing; server errors step down and pause probing for a
+ * while.
+ */
+public class ConnectionController {
+    private static final String TAG = "ConnectionController";
+
+    public static final int DEFAULT_INITIAL = 2;
+    public static final int DEFAULT_CEILING = 8;
+    public static final long DEFAULT_WINDOW = 2000; // ms
+
+    // Throughput has to improve by this fraction to justify another connection
+    private static final float MIN_GAIN = 0.1f;
+    // Windows to wait after an error before probing again
+    private static final int ERROR_COOLDOWN_WINDOWS = 5;
+
+    public static final int REASON_GROW = 1;
+    public static final int REASON_PLATEAU = 2;
+    public static final int REASON_SERVER_ERROR = 3;
+
+    /**
+     * 连接数调整回调
+     */
+    public interface Metrics {
+        void onConnectionDecision(int from, int to, long bytesPerSecond, int reason);
+    }
+
+    private final int ceiling;
+    private final long window;
+    private Metrics metrics;
+
+    private int target;
+    private boolean probing = true;
+    private int cooldown = 0;
+    private long windowStart;
+    private long windowBytes = 0;
+    private long lastThroughput = 0;
+    private long peakThroughput = 0;
+
+    public ConnectionController() {
+        this(DEFAULT_INITIAL, DEFAULT_CEILING, DEFAULT_WINDOW);
+    }
+
+    public ConnectionController(int initial, int ceiling, long window) {
+        this.ceiling = Math.max(1, ceiling);
+        this.target = Math.max(1, Math.min(initial, this.ceiling));
+        this.window = window;
+        this.windowStart = SystemClock.elapsedRealtime();
+        this.metrics = new Metrics() {
+            @Override
+            public void onConnectionDecision(int from, int to, long bytesPerSecond, int reason) {
+                Log.d(TAG, "connections " + from + " -> " + to + " at " + bytesPerSecond
+                        + " B/s, reason=" + reason);
+            }
+        };
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized int getTarget() {
+        return target;
+    }
+
+    /**
+     * 单个窗口内的最高吞吐量 B/s
+     */
+    public synchronized long getPeakThroughput() {
+        return peakThroughput;
+    }
+
+    /**
+     * 统计下载字节，每个窗口结束时做一次决策
+     *
+     * @return 是否需要新增连接
+     */
+    public boolean onBytes(int count) {
+        int from, to;
+        long throughput;
+        int reason;
+        synchronized (this) {
+            windowBytes += count;
+            long now = SystemClock.elapsedRealtime();
+            long elapsed = now - windowStart;
+            if (elapsed < window) {
+                return false;
+            }
+            throughput = windowBytes * 1000 / elapsed;
+            peakThroughput = Math.max(peakThroughput, throughput);
+            windowStart = now;
+            windowBytes = 0;
+            from = target;
+            if (cooldown > 0) {
+                cooldown--;
+                if (cooldown == 0) {
+                    probing = true;
+                }
+                lastThroughput = throughput;
+                return false;
+            }
+            if (!probing) {
+                lastThroughput = throughput;
+                return false;
+            }
+            if (lastThroughput > 0 && throughput < lastThroughput * (1 + MIN_GAIN)
+                    && target > 1) {
+                // 增加连接已无收益，回退上一步
+                target--;
+                probing = false;
+                reason = REASON_PLATEAU;
+            } else if (target < ceiling) {
+                target++;
+                reason = REASON_GROW;
+            } else {
+                lastThroughput = throughput;
+                return false;
+            }
+            lastThroughput = throughput;
+            to = target;
+        }
+        metrics.onConnectionDecision(from, to, throughput, reason);
+        return to > from;
+    }
+
+    /**
+     * 服务器返回错误（如503）或连接失败
+     */
+    public void onServerError() {
+        int from, to;
+        long throughput;
+        synchronized (this) {
+            from = target;
+            target = Math.max(1, target - 1);
+            to = target;
+            probing = false;
+            cooldown = ERROR_COOLDOWN_WINDOWS;
+            throughput = lastThroughput;
+        }
+        if (from != to) {
+            metrics.onConnectionDecision(from, to, throughput, REASON_SERVER_ERROR);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+
+/**
+ * 下载分段任务执行器
+ *
+ * All segment tasks of all downloads share one global concurrency budget.
+ * Pending tasks are queued per download and dispatched round-robin, and
+ * {@link #getFairShare(Object)} tells a download how many of the slots it
+ * may hold while others are waiting. Worker threads are named and reused.
+ */
+public class DownLoadExecutor {
+    public static final int DEFAULT_MAX_WORKERS = 8;
+
+    private final int maxWorkers;
+    private final ExecutorService pool;
+    private final BufferPool bufferPool;
+    // Insertion order is the round-robin order
+    private final LinkedHashMap<Object, LinkedList<Runnable>> pending =
+            new LinkedHashMap<Object, LinkedList<Runnable>>();
+    // 各下载正在运行的任务数
+    private final Map<Object, Integer> running = new HashMap<Object, Integer>();
+    private int runningCount = 0;
+
+    public DownLoadExecutor(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+        this.bufferPool = new BufferPool(maxWorkers);
+        this.pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "DownLoadWorker #" + count.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * 提交分段任务
+     *
+     * @param owner 所属下载
+     * @param task
+     */
+    public void execute(Object owner, Runnable task) {
+        synchronized (this) {
+            LinkedList<Runnable> queue = pending.get(owner);
+            if (queue == null) {
+                queue = new LinkedList<Runnable>();
+                pending.put(owner, queue);
+            }
+            queue.add(task);
+        }
+        dispatch();
+    }
+
+    /**
+     * 取消下载的排队任务
+     *
+     * Running tasks are not interrupted: an interrupt during channel I/O
+     * closes the file channel all segments share. The download stops them
+     * through its state and by disconnecting their connections.
+     *
+     * @return 未运行即被丢弃的任务
+     */
+    public synchronized List<Runnable> cancel(Object owner) {
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        LinkedList<Runnable> queue = pending.remove(owner);
+        if (queue != null) {
+            dropped.addAll(queue);
+        }
+        return dropped;
+    }
+
+    /**
+     * 各下载共用的读取缓冲池
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * 当前下载可占用的连接数
+     */
+    public synchronized int getFairShare(Object owner) {
+        Set<Object> owners = new HashSet<Object>(running.keySet());
+        owners.addAll(pending.keySet());
+        owners.add(owner);
+        return Math.max(1, maxWorkers / owners.size());
+    }
+
+    private void dispatch() {
+        synchronized (this) {
+            while (runningCount < maxWorkers && !pending.isEmpty()) {
+                Iterator<Map.Entry<Object, LinkedList<Runnable>>> it =
+                        pending.entrySet().iterator();
+                Map.Entry<Object, LinkedList<Runnable>> entry = it.next();
+                it.remove();
+                Object owner = entry.getKey();
+                LinkedList<Runnable> queue = entry.getValue();
+                Runnable task = queue.poll();
+                if (!queue.isEmpty()) {
+                    // 移到队尾，轮流调度
+                    pending.put(owner, queue);
+                }
+                runningCount++;
+                pool.execute(new Worker(owner, task));
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final Object owner;
+        private final Runnable task;
+
+        Worker(Object owner, Runnable task) {
+            this.owner = owner;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            synchronized (DownLoadExecutor.this) {
+                Integer count = running.get(owner);
+                running.put(owner, count == null ? 1 : count + 1);
+            }
+            try {
+                task.run();
+            } finally {
+                synchronized (DownLoadExecutor.this) {
+                    int count = running.get(owner) - 1;
+                    if (count == 0) {
+                        running.remove(owner);
+                    } else {
+                        running.put(owner, count);
+                    }
+                    runningCount--;
+                }
+                dispatch();
+            }
+        }
+    }
+}
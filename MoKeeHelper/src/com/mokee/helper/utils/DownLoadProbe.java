@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+/**
+ * 下载前探测文件信息
+ *
+ * Sends a HEAD request, falling back to a one byte ranged GET, to learn the
+ * length, whether byte ranges are honoured, the validators and the final
+ * redirect target without starting the actual transfer. If the fallback
+ * fails after a HEAD that gave a length, the HEAD result is kept and the
+ * file is treated as not supporting ranges.
+ */
+public class DownLoadProbe {
+    private static final String TAG = "DownLoadProbe";
+
+    private static final int DEFAULT_TIMEOUT = (int) (5 * DateUtils.SECOND_IN_MILLIS);
+    private static final int MAX_REDIRECTS = 5;
+
+    private String url;
+    private long contentLength = -1;
+    private boolean rangeSupported = false;
+    private String eTag;
+    private String lastModified;
+
+    private DownLoadProbe() {
+    }
+
+    /**
+     * 最终下载地址（已跟随重定向）
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public boolean isRangeSupported() {
+        return rangeSupported;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 续传校验值，用作If-Range
+     *
+     * @return 强ETag，否则Last-Modified，都没有时为null
+     */
+    public String getValidator() {
+        // If-Range does not accept weak entity tags
+        if (!TextUtils.isEmpty(eTag) && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    public static DownLoadProbe probe(String fileUrl) throws IOException {
+        DownLoadProbe probe = new DownLoadProbe();
+        probe.url = fileUrl;
+        try {
+            probe.request("HEAD");
+        } catch (IOException e) {
+            Log.i(TAG, "HEAD failed, falling back to ranged GET", e);
+            probe.contentLength = -1;
+        }
+        if (probe.contentLength <= 0 || !probe.rangeSupported) {
+            // HEAD unsupported or inconclusive, ask for the first byte
+            DownLoadProbe fallback = new DownLoadProbe();
+            fallback.url = probe.url;
+            try {
+                fallback.request("GET");
+                return fallback;
+            } catch (IOException e) {
+                if (probe.contentLength <= 0) {
+                    throw e;
+                }
+                // 保留HEAD的结果，按不支持分段单连接下载
+                Log.i(TAG, "Ranged GET failed, using HEAD result without ranges", e);
+                probe.rangeSupported = false;
+            }
+        }
+        return probe;
+    }
+
+    private void request(String method) throws IOException {
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; redirects++) {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            try {
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(DEFAULT_TIMEOUT);
+                connection.setReadTimeout(DEFAULT_TIMEOUT);
+                connection.setRequestMethod(method);
+                if ("GET".equals(method)) {
+                    connection.setRequestProperty("Range", "bytes=0-0");
+                }
+                int code = connection.getResponseCode();
+                if (code >= 300 && code < 400) {
+                    String location = connection.getHeaderField("Location");
+                    if (TextUtils.isEmpty(location)) {
+                        throw new IOException("Redirect without location");
+                    }
+                    url = new URL(new URL(url), location).toString();
+                    continue;
+                }
+                if (code == HttpURLConnection.HTTP_PARTIAL) {
+                    rangeSupported = true;
+                    contentLength = parseContentRangeTotal(
+                            connection.getHeaderField("Content-Range"));
+                } else if (code == HttpURLConnection.HTTP_OK) {
+                    contentLength = parseLong(connection.getHeaderField("Content-Length"));
+                    // A GET answered with 200 means the Range header was ignored
+                    rangeSupported = "HEAD".equals(method)
+                            && "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+                } else {
+                    throw new IOException("Unexpected response code " + code);
+                }
+                eTag = connection.getHeaderField("ETag");
+                lastModified = connection.getHeaderField("Last-Modified");
+                return;
+            } finally {
+                // Never read the body, a 200 to our GET would be the whole file
+                connection.disconnect();
+            }
+        }
+        throw new IOException("Too many redirects");
+    }
+
+    /**
+     * "bytes 0-0/12345" -> 12345
+     */
+    private static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        return parseLong(contentRange.substring(slash + 1));
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DownLoadProbe [url=" + url + ", contentLength=" + contentLength
+                + ", rangeSupported=" + rangeSupported + ", eTag=" + eTag + ", lastModified="
+                + lastModified + "]";
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 下载进度发布
+ *
+ * The engine publishes byte counts and state changes here and listeners are
+ * called back on the main thread. Byte counts are coalesced: only the latest
+ * value per download is kept and delivered at most once per
+ * {@link #MIN_INTERVAL}. State changes are delivered right away.
+ */
+public class DownLoadProgress {
+    public static final long MIN_INTERVAL = 250; // ms
+
+    /**
+     * 进度回调，在主线程调用
+     */
+    public interface Listener {
+        void onProgressChanged(String fileUrl, int state, long downloaded, long total);
+    }
+
+    private static class Snapshot {
+        final String fileUrl;
+        int state = DownLoader.STATUS_PENDING;
+        long downloaded = 0;
+        long total = -1;
+        boolean dirty;
+
+        Snapshot(String fileUrl) {
+            this.fileUrl = fileUrl;
+        }
+
+        Snapshot copy() {
+            Snapshot snapshot = new Snapshot(fileUrl);
+            snapshot.state = state;
+            snapshot.downloaded = downloaded;
+            snapshot.total = total;
+            return snapshot;
+        }
+    }
+
+    private static DownLoadProgress instance;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+    // 只在主线程访问
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private boolean scheduled = false;
+    private long lastDispatch = 0;
+
+    private final Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            List<Snapshot> changed = new ArrayList<Snapshot>();
+            synchronized (DownLoadProgress.this) {
+                scheduled = false;
+                lastDispatch = SystemClock.uptimeMillis();
+                for (Snapshot snapshot : snapshots.values()) {
+                    if (snapshot.dirty) {
+                        snapshot.dirty = false;
+                        changed.add(snapshot.copy());
+                    }
+                }
+            }
+            for (Snapshot snapshot : changed) {
+                deliver(new ArrayList<Listener>(listeners), snapshot);
+            }
+        }
+    };
+
+    private DownLoadProgress() {
+    }
+
+    public static synchronized DownLoadProgress getInstance() {
+        if (instance == null) {
+            instance = new DownLoadProgress();
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 立即向listener发送当前进度，主线程调用
+     *
+     * @return 尚无该下载的进度时返回false
+     */
+    public boolean notifyCurrent(String fileUrl, Listener listener) {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = snapshots.get(fileUrl);
+            if (snapshot == null) {
+                return false;
+            }
+            snapshot = snapshot.copy();
+        }
+        listener.onProgressChanged(snapshot.fileUrl, snapshot.state, snapshot.downloaded,
+                snapshot.total);
+        return true;
+    }
+
+    /**
+     * 发布下载字节数，合并后延迟发送
+     */
+    public synchronized void publishProgress(String fileUrl, long downloaded, long total) {
+        Snapshot snapshot = get(fileUrl);
+        if (snapshot.downloaded == downloaded && snapshot.total == total) {
+            return;
+        }
+        snapshot.downloaded = downloaded;
+        snapshot.total = total;
+        snapshot.dirty = true;
+        if (!scheduled) {
+            scheduled = true;
+            long delay = lastDispatch + MIN_INTERVAL - SystemClock.uptimeMillis();
+            handler.postDelayed(dispatch, Math.max(0, delay));
+        }
+    }
+
+    /**
+     * 发布状态变化，立即发送
+     */
+    public synchronized void publishState(String fileUrl, int state) {
+        Snapshot snapshot = get(fileUrl);
+        if (snapshot.state == state) {
+            return;
+        }
+        snapshot.state = state;
+        snapshot.dirty = true;
+        handler.removeCallbacks(dispatch);
+        scheduled = true;
+        handler.post(dispatch);
+    }
+
+    /**
+     * 下载记录已删除
+     */
+    public synchronized void remove(String fileUrl) {
+        snapshots.remove(fileUrl);
+    }
+
+    private Snapshot get(String fileUrl) {
+        Snapshot snapshot = snapshots.get(fileUrl);
+        if (snapshot == null) {
+            snapshot = new Snapshot(fileUrl);
+            snapshots.put(fileUrl, snapshot);
+        }
+        return snapshot;
+    }
+
+    private static void deliver(List<Listener> listeners, Snapshot snapshot) {
+        for (Listener listener : listeners) {
+            listener.onProgressChanged(snapshot.fileUrl, snapshot.state, snapshot.downloaded,
+                    snapshot.total);
+        }
+    }
+}
@@ -18,22 +18,33 @@
 package com.mokee.helper.utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
 import android.mokee.utils.MoKeeUtils;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
 import com.mokee.helper.db.DownLoadDao;
+import com.mokee.helper.db.DownLoadHistoryDao;
+import com.mokee.helper.db.DownLoadRegistry;
 import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.misc.DownLoadHistory;
 import com.mokee.helper.misc.DownLoadInfo;
 import com.mokee.helper.misc.ThreadDownLoadInfo;
 
@@ -53,21 +64,45 @@ public class DownLoader {
     private Context mContext;
     private long fileSize;// 所要下载的文件的大小
     private List<ThreadDownLoadInfo> downInfoList;// 存放下载信息类的集合
-    private int state = STATUS_PENDING;
+    private volatile int state = STATUS_PENDING;
     private int notificationID = -1;// 存储对应通知ID;
     public long allDownSize = 0;// 总体下载大小
     public long downloadedSize = 0;
-    private int endThreadNum = 0;
+    private int workerCount = 0;// 正在运行的连接数
     private long startDown;
+    private ProgressCheckpointer checkpointer;// 进度检查点
+    private PositionalFileWriter writer;// 分段共享写入
+    private SegmentScheduler scheduler;// 动态分段调度
+    private ConnectionController controller;// 自适应连接数
+    private ConnectionController.Metrics metrics;
+    private int maxConnections = ConnectionController.DEFAULT_CEILING;
+    private DownLoadExecutor executor;// 分段任务执行器
+    private DownLoadProbe probe;// 文件信息探测结果
+    private BackoffPolicy backoff = new BackoffPolicy();// 重试退避策略
+    private BackoffPolicy.Budget retryBudget;// 本次下载的重试预算
+    // 慢连接换新连接的次数，分段完成时归还，不占用重试预算
+    private static final int MAX_SLOW_RECONNECTS = 3;
+    private final AtomicInteger slowReconnects = new AtomicInteger();
+    private StreamingDigester digester;// 下载中计算MD5
+    private StallWatchdog watchdog;// 连接停滞检测
+    private long sessionStart;// 本次下载开始时间(elapsedRealtime)
+    private long sessionStartTime;// 本次下载开始时间(wall clock)
+    private long sessionStartSize;// 本次下载开始时已下载的大小
+    private boolean restarted = false;// 本次下载是否已从头重新开始
+    private boolean rangeIgnored = false;// 服务器声明支持Range但返回了整个文件
+    private long downloadId = -1;// download_info主键，分段记录以此关联
+    // 正在进行的连接，取消时断开；也用于唤醒等待重试的分段
+    private final Set<SegmentTask.Attempt> attempts = new HashSet<SegmentTask.Attempt>();
 
     public DownLoader(String fileUrl, String localfile,// int threadcount,
-            Handler mHandler, long startDown, Context mContext) {
+            Handler mHandler, long startDown, Context mContext, DownLoadExecutor executor) {
         this.fileUrl = fileUrl;
         this.localFile = localfile;
         // this.threadCount = threadcount;
         this.mHandler = mHandler;
         this.startDown = startDown;
         this.mContext = mContext;
+        this.executor = executor;
     }
 
     public long getStartDown() {
@@ -86,6 +121,17 @@ public class DownLoader {
         return fileSize;
     }
 
+    /**
+     * 设置最大连接数
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setConnectionMetrics(ConnectionController.Metrics metrics) {
+        this.metrics = metrics;
+    }
+
     public boolean isDownLoading() {
         return state == STATUS_DOWNLOADING;
     }
@@ -97,6 +143,16 @@ public class DownLoader {
      */
     public DownLoadInfo getDownLoadInfo() {
         if (MoKeeUtils.isOnline(mContext)) { // 执行时简单判断网络状态
+            if (!probe()) {
+                return null;
+            }
+            // 每次下载只查询一次主键
+            downloadId = DownLoadDao.getInstance().getDownloadId(fileUrl);
+            if (downloadId < 0) {
+                state = STATUS_ERROR;
+                sendMsg(state, fileUrl, 0);
+                return null;
+            }
             if (isFirst(fileUrl)) {
                 if (!init()) { // judge init is success
                     return null;
@@ -111,19 +167,20 @@ public class DownLoader {
                 ThreadDownLoadInfo info = new ThreadDownLoadInfo(threadCount - 1, (threadCount - 1)
                         * range, fileSize - 1, 0, fileUrl);
                 downInfoList.add(info);
-                ThreadDownLoadDao.getInstance().saveInfos(downInfoList);
+                ThreadDownLoadDao.getInstance().saveInfos(downloadId, downInfoList);
                 allDownSize = 0;
                 downloadedSize = 0;
                 DownLoadInfo loadInfo = new DownLoadInfo(fileSize, 0, fileUrl);
                 return loadInfo;
             } else {// 初始化信息待修改
                 // 获取URL的相关线程信息
-                downInfoList = ThreadDownLoadDao.getInstance().getThreadInfoList(fileUrl);
+                downInfoList = ThreadDownLoadDao.getInstance().getThreadInfoList(downloadId,
+                        fileUrl);
                 this.threadCount = downInfoList.size();
                 Log.v("TAG", "not isFirst size=" + downInfoList.size());
                 // int size = 0;
-                int complete = 0;
-                fileSize = DownLoadDao.getInstance().getDownLoadInfoByUrl(fileUrl).getFileSize();
+                long complete = 0;
+                fileSize = DownLoadRegistry.getInstance().getDownLoadInfoByUrl(fileUrl).getFileSize();
                 allDownSize = 0;
                 downloadedSize = 0;
                 for (ThreadDownLoadInfo info : downInfoList) {
@@ -145,29 +202,43 @@ public class DownLoader {
         }
     }
 
+    /**
+     * 探测文件长度、是否支持分段及最终地址
+     */
+    private boolean probe() {
+        try {
+            probe = DownLoadProbe.probe(fileUrl);
+            Log.v("TAG", probe.toString());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            state = STATUS_ERROR;
+            sendMsg(state, fileUrl, 0);
+            return false;
+        }
+    }
+
     /**
      * 初始化
      */
     private boolean init() {
         try {
-            URL url = new URL(fileUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(5000);
-            connection.setRequestMethod("GET");
-            fileSize = connection.getContentLength();
-            connection.disconnect();
+            fileSize = probe.getContentLength();
             if (fileSize > 0) {
-                if (fileSize < 1048576) {// 1m
+                if (fileSize < 1048576 || !useRanges()) {// 1m或不支持分段时单连接
                     this.threadCount = 1;
-                } else {// >50m
-                    this.threadCount = 4;
+                } else {// 初始连接数，之后按吞吐量调整
+                    this.threadCount = Math.min(ConnectionController.DEFAULT_INITIAL,
+                            maxConnections);
                 }
-                DownLoadDao.getInstance().updataFileSize(fileUrl, fileSize);// 更新文件长度
+                DownLoadRegistry.getInstance().updataFileSize(fileUrl, fileSize);// 更新文件长度
+                DownLoadDao.getInstance().updataValidator(fileUrl, probe.getValidator());
+                DownLoadDao.getInstance().updataDigest(fileUrl, null);
                 File file = new File(localFile);
                 if (!file.exists()) {
                     file.createNewFile();
                 }
-                RandomAccessFile accessFile = new RandomAccessFile(file, "rwd");
+                RandomAccessFile accessFile = new RandomAccessFile(file, "rw");
                 accessFile.setLength(fileSize);
                 accessFile.close();
                 return true;
@@ -184,11 +255,20 @@ public class DownLoader {
         }
     }
 
+    /**
+     * 服务器支持Range且未曾忽略过Range
+     */
+    private boolean useRanges() {
+        return probe.isRangeSupported() && !rangeIgnored;
+    }
+
     /**
      * 判断是否是第一次下载
      */
     private boolean isFirst(String fileUrl) {
-        if (!ThreadDownLoadDao.getInstance().isHasInfos(fileUrl) | !new File(localFile).exists())
+        // 不支持分段的服务器无法续传，只能重新下载
+        if (!ThreadDownLoadDao.getInstance().isHasInfos(downloadId) | !new File(localFile).exists()
+                | !useRanges() | isChanged(fileUrl))
         {
             delete(fileUrl);// 清理未完成线程记录
             return true;
@@ -196,6 +276,25 @@ public class DownLoader {
         return false;
     }
 
+    /**
+     * 服务器上的文件是否已不是本地未完成文件对应的版本
+     */
+    private boolean isChanged(String fileUrl) {
+        DownLoadInfo info = DownLoadRegistry.getInstance().getDownLoadInfoByUrl(fileUrl);
+        if (info != null && info.getFileSize() != probe.getContentLength()) {
+            return true;
+        }
+        String validator = DownLoadDao.getInstance().getValidator(fileUrl);
+        if (validator == null) {
+            // 旧版本升级来的记录没有校验值，长度一致即续传，并补存本次的校验值
+            if (probe.getValidator() != null) {
+                DownLoadDao.getInstance().updataValidator(fileUrl, probe.getValidator());
+            }
+            return false;
+        }
+        return !TextUtils.equals(validator, probe.getValidator());
+    }
+
     /**
      * 准备分段下载
      */
@@ -203,125 +302,533 @@ public class DownLoader {
         if (downInfoList != null) {
             if (state == STATUS_DOWNLOADING)
                 return;
+            try {
+                writer = new PositionalFileWriter(localFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+                state = STATUS_ERROR;
+                sendMsg(state, fileUrl, 0);
+                return;
+            }
+            checkpointer = new ProgressCheckpointer(downloadId);
+            checkpointer.setSyncBarrier(writer);
+            retryBudget = new BackoffPolicy.Budget(BackoffPolicy.DEFAULT_DOWNLOAD_BUDGET);
+            slowReconnects.set(MAX_SLOW_RECONNECTS);
+            scheduler = new SegmentScheduler(fileUrl, downloadId, downInfoList);
+            scheduler.setSplittable(useRanges());
+            digester = new StreamingDigester(fileUrl, writer, DownLoadDao.getInstance().getDigest(
+                    fileUrl), scheduler.getContiguousEnd());
+            if (fileSize < 1048576 || !useRanges()) {
+                controller = new ConnectionController(1, 1, ConnectionController.DEFAULT_WINDOW);
+            } else {
+                controller = new ConnectionController(ConnectionController.DEFAULT_INITIAL,
+                        maxConnections, ConnectionController.DEFAULT_WINDOW);
+            }
+            if (metrics != null) {
+                controller.setMetrics(metrics);
+            }
+            watchdog = new StallWatchdog();
+            watchdog.start();
+            workerCount = 0;
+            sessionStart = SystemClock.elapsedRealtime();
+            sessionStartTime = System.currentTimeMillis();
+            sessionStartSize = allDownSize;
             state = STATUS_DOWNLOADING;
-            DownLoadDao.getInstance().updataState(fileUrl, state);
-            for (ThreadDownLoadInfo info : downInfoList) {
-                new DonwLoadThread(info.getThreadId(), info.getStartPos(), info.getEndPos(),
-                        info.getDownSize(), info.getUrl()).start();
+            DownLoadProgress.getInstance().publishProgress(fileUrl, allDownSize, fileSize);
+            DownLoadRegistry.getInstance().updataState(fileUrl, state);
+            for (int i = 0; i < controller.getTarget(); i++) {
+                if (!addWorker()) {
+                    break;
+                }
+            }
+            if (workerCount == 0) {
+                // 所有分段均已完成
+                workerCount = 1;
+                isFinished();
+            }
+        }
+    }
+
+    /**
+     * 新增一个连接
+     */
+    private synchronized boolean addWorker() {
+        if (state != STATUS_DOWNLOADING || workerCount >= executor.getFairShare(this)) {
+            return false;
+        }
+        ThreadDownLoadInfo segment = scheduler.next(null);
+        if (segment == null) {
+            return false;
+        }
+        workerCount++;
+        executor.execute(this, new SegmentTask(segment));
+        return true;
+    }
+
+    /**
+     * 停滞的连接退出后换一个新连接，领取第一个无人下载的范围
+     */
+    private synchronized boolean replaceWorker() {
+        if (state != STATUS_DOWNLOADING) {
+            return false;
+        }
+        ThreadDownLoadInfo segment = scheduler.next(null);
+        if (segment == null) {
+            return false;
+        }
+        executor.execute(this, new SegmentTask(segment));
+        return true;
+    }
+
+    /**
+     * 连接数超出目标或公平份额时退出当前连接，其剩余范围由其他连接领取
+     */
+    private synchronized boolean retireWorker() {
+        if (workerCount > Math.min(controller.getTarget(), executor.getFairShare(this))) {
+            workerCount--;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean takeSlowReconnect() {
+        while (true) {
+            int left = slowReconnects.get();
+            if (left <= 0) {
+                return false;
+            }
+            if (slowReconnects.compareAndSet(left, left - 1)) {
+                return true;
             }
         }
     }
 
-    public class DonwLoadThread extends Thread {
-        private int threadId;
-        private long startPos;
-        private long endPos;
-        private long downSize;
-        private long sectionSize;
-        private String fileUrl;
-        private int retries = 0;
+    private void returnSlowReconnect() {
+        while (true) {
+            int left = slowReconnects.get();
+            if (left >= MAX_SLOW_RECONNECTS
+                    || slowReconnects.compareAndSet(left, left + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 登记连接，下载已停止时返回false
+     */
+    private boolean register(SegmentTask.Attempt attempt) {
+        synchronized (attempts) {
+            if (state != STATUS_DOWNLOADING) {
+                return false;
+            }
+            attempts.add(attempt);
+            return true;
+        }
+    }
+
+    private class SegmentTask implements Runnable {
+        private static final int SEGMENT_COMPLETE = 0;
+        private static final int SEGMENT_STOPPED = 1;
+        private static final int SEGMENT_RETIRED = 2;
+        private static final int SEGMENT_STALLED = 3;
+
+        private ThreadDownLoadInfo segment;
+        private volatile boolean stalled;
+        private StallWatchdog.Watch watch;
+        private int failure;// 当前失败阶段
+        private int chunkSize = BufferPool.MIN_SIZE;// 自适应块大小
+        private long lastProgress = 0;
+        private static final long PROGRESS_INTERVAL = 500; // ms
         private static final int DEFAULT_TIMEOUT = (int) (20 * DateUtils.SECOND_IN_MILLIS);
 
-        private static final int DEFAULT_REQUEST_TIMEOUT = 10000; // 10 seconds
-        private static final int DEFAULT_REQUEST_MAX_RETRIES = 3;
-
-        public DonwLoadThread(int threadId, long startPos, long endPos, long downSize,
-                String fileUrl) {
-            this.threadId = threadId;
-            this.startPos = startPos;
-            this.endPos = endPos;
-            this.downSize = downSize;
-            this.sectionSize = endPos - startPos;
-            this.fileUrl = fileUrl;
+        public SegmentTask(ThreadDownLoadInfo segment) {
+            this.segment = segment;
         }
 
         @Override
         public void run() {
-            if (downSize < sectionSize) {
-                HttpURLConnection connection = null;
-                RandomAccessFile randomAccessFile = null;
-                InputStream is = null;
+            while (segment != null) {
+                int result = download();
+                if (result == SEGMENT_COMPLETE) {
+                    returnSlowReconnect();
+                    // 当前分段完成后领取或拆分剩余范围继续下载
+                    segment = scheduler.next(segment);
+                    continue;
+                }
+                scheduler.deactivate(segment);
+                if (result == SEGMENT_RETIRED) {
+                    checkpointer.flush();
+                    return;
+                }
+                if (result == SEGMENT_STALLED && replaceWorker()) {
+                    // 剩余范围已交给新连接，较快的连接也可再拆分
+                    return;
+                }
+                break;
+            }
+            isFinished();
+        }
+
+        /**
+         * 一次连接，交给看门狗检测
+         *
+         * The watchdog only ever sees the connection and segment id captured
+         * here, so a stall reported late cannot tear down the connection of
+         * a later retry. close(), abort() and onStalled() share the attempt's
+         * lock.
+         */
+        private class Attempt implements StallWatchdog.Target {
+            private final HttpURLConnection connection;
+            private final int threadId;
+            private boolean closed = false;
+
+            Attempt(HttpURLConnection connection, int threadId) {
+                this.connection = connection;
+                this.threadId = threadId;
+            }
+
+            /**
+             * 连接停滞：断开后由run()换新连接，计入重试预算
+             */
+            @Override
+            public synchronized boolean onStalled() {
+                if (closed || state != STATUS_DOWNLOADING || !retryBudget.consume()) {
+                    return false;
+                }
+                Log.i("TAG", "segment " + threadId + " stalled, reconnecting");
+                stalled = true;
+                connection.disconnect();
+                return true;
+            }
+
+            /**
+             * 连接过慢：有剩余次数时换新连接，否则继续慢速下载
+             */
+            @Override
+            public synchronized boolean onSlow() {
+                if (closed || state != STATUS_DOWNLOADING || !takeSlowReconnect()) {
+                    return false;
+                }
+                Log.i("TAG", "segment " + threadId + " slow, reconnecting");
+                stalled = true;
+                connection.disconnect();
+                return true;
+            }
+
+            /**
+             * 取消下载：断开连接，阻塞的读取随即抛出异常
+             */
+            synchronized void abort() {
+                if (!closed) {
+                    connection.disconnect();
+                }
+            }
+
+            synchronized void close() {
+                closed = true;
+            }
+        }
+
+        /**
+         * 下载当前分段，失败时按退避策略循环重试
+         *
+         * @return SEGMENT_COMPLETE, SEGMENT_STOPPED, SEGMENT_RETIRED or SEGMENT_STALLED
+         */
+        private int download() {
+            BackoffPolicy.Retry retry = backoff.newRetry(retryBudget);
+            while (true) {
+                long before = segment.getDownSize();
+                failure = BackoffPolicy.FAILURE_CONNECT;
+                try {
+                    return transfer();
+                } catch (BackoffPolicy.StatusException e) {
+                    e.printStackTrace();
+                    if (!BackoffPolicy.isRetryableStatus(e.getCode())) {
+                        return SEGMENT_STOPPED;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                checkpointer.flush();
+                if (stalled) {
+                    return SEGMENT_STALLED;
+                }
+                if (state != STATUS_DOWNLOADING) {
+                    // 取消时断开的连接，不计入重试
+                    return SEGMENT_STOPPED;
+                }
+                if (failure != BackoffPolicy.FAILURE_READ) {
+                    controller.onServerError();
+                }
+                if (segment.getDownSize() > before) {
+                    retry.onProgress();
+                }
+                long delay = retry.next(failure);
+                if (delay < 0 || state != STATUS_DOWNLOADING) {
+                    return SEGMENT_STOPPED;
+                }
+                Log.i("TAG", "segment " + segment.getThreadId() + " retry in " + delay + "ms");
                 try {
-                    URL url = new URL(fileUrl);
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setInstanceFollowRedirects(false);
-                    connection.setConnectTimeout(DEFAULT_TIMEOUT);
-                    connection.setReadTimeout(DEFAULT_TIMEOUT);
-                    connection.setRequestMethod("GET");
-                    connection.setRequestProperty("Connection", "Keep-Alive");
+                    synchronized (attempts) {
+                        // cancelTasks()唤醒
+                        if (state == STATUS_DOWNLOADING) {
+                            attempts.wait(delay);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return SEGMENT_STOPPED;
+                }
+                if (state != STATUS_DOWNLOADING) {
+                    return SEGMENT_STOPPED;
+                }
+            }
+        }
+
+        /**
+         * 单次连接传输
+         */
+        private int transfer() throws IOException {
+            long startPos = segment.getStartPos();
+            long downSize = segment.getDownSize();
+            if (startPos + downSize > segment.getEndPos()) {
+                return SEGMENT_COMPLETE;
+            }
+            InputStream is = null;
+            HttpURLConnection connection = null;
+            Attempt attempt = null;
+            stalled = false;
+            try {
+                URL url = new URL(probe.getUrl());
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setInstanceFollowRedirects(false);
+                connection.setConnectTimeout(DEFAULT_TIMEOUT);
+                connection.setReadTimeout(DEFAULT_TIMEOUT);
+                connection.setRequestMethod("GET");
+                connection.setRequestProperty("Connection", "Keep-Alive");
+                attempt = new Attempt(connection, segment.getThreadId());
+                if (!register(attempt)) {
+                    return SEGMENT_STOPPED;
+                }
+                if (useRanges()) {
                     // 设置分段读取范围
                     connection.setRequestProperty("Range", "bytes=" + (startPos + downSize) + "-"
-                            + endPos);
-                    connection.connect();
-                    // 随机存储
-                    randomAccessFile = new RandomAccessFile(localFile, "rwd");
-                    randomAccessFile.seek(startPos + downSize);
-                    is = connection.getInputStream();
-                    byte[] buffer = new byte[4096];
-                    int length = -1;
-                    int i = 0;
-                    while ((length = is.read(buffer)) != -1) { // while ((length = is.read(buffer, 0, 1024)) != -1)
-                        i++;
-                        randomAccessFile.write(buffer, 0, length);
-                        downSize += length;
-                        allDownSize += length;
-                        // 线程更新进度
-                        ThreadDownLoadDao.getInstance().updataInfo(threadId, downSize, fileUrl);
-                        if (state == STATUS_PAUSED || state == STATUS_DELETE
-                                || state == STATUS_ERROR) {
-                            interrupt();
+                            + segment.getEndPos());
+                    if (probe.getValidator() != null) {
+                        // 文件已变化时服务器返回200整个新文件
+                        connection.setRequestProperty("If-Range", probe.getValidator());
+                    }
+                }
+                connection.connect();
+                if (state != STATUS_DOWNLOADING) {
+                    return SEGMENT_STOPPED;
+                }
+                int code = connection.getResponseCode();
+                if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+                    failure = BackoffPolicy.FAILURE_STATUS;
+                    throw new BackoffPolicy.StatusException(code);
+                }
+                if (code == HttpURLConnection.HTTP_OK && startPos + downSize > 0) {
+                    if (probe.getValidator() == null) {
+                        // 服务器忽略了Range，重试也不会成功，改为单连接从头下载
+                        rangeIgnored = true;
+                        scheduler.setSplittable(false);
+                    }
+                    // 有校验值时是If-Range不匹配，已下载部分属于旧文件
+                    restart();
+                    return SEGMENT_STOPPED;
+                }
+                failure = BackoffPolicy.FAILURE_READ;
+                is = connection.getInputStream();
+                watch = watchdog.watch(attempt);
+                return read(is, startPos, downSize);
+            } finally {
+                if (watch != null) {
+                    watch.close();
+                    watch = null;
+                }
+                if (attempt != null) {
+                    synchronized (attempts) {
+                        attempts.remove(attempt);
+                    }
+                    attempt.close();
+                }
+                try {
+                    if (is != null) {
+                        is.close();
+                    }
+                    if (connection != null) {
+                        connection.disconnect();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * 按块读取并写入，每块只更新一次进度
+         */
+        private int read(InputStream is, long startPos, long downSize) throws IOException {
+            BufferPool pool = executor.getBufferPool();
+            ByteBuffer buffer = pool.acquire(chunkSize);
+            try {
+                while (true) {
+                    // 结束点可能已被拆分缩短，超出部分由新分段负责
+                    long position = startPos + downSize;
+                    int limit = (int) Math.min(buffer.capacity(),
+                            segment.getEndPos() - position + 1);
+                    if (limit <= 0) {
+                        return SEGMENT_COMPLETE;
+                    }
+                    byte[] array = buffer.array();
+                    long fillStart = SystemClock.elapsedRealtime();
+                    int count = 0;
+                    boolean eof = false;
+                    while (count < limit) {
+                        int length = is.read(array, buffer.arrayOffset() + count, limit - count);
+                        if (length == -1) {
+                            eof = true;
                             break;
                         }
-                        if (i == 5) {
-                            sendMsg(STATUS_DOWNLOADING, fileUrl, length);
-                            i = 0;
+                        count += length;
+                        watch.onBytes(length);
+                        if (state != STATUS_DOWNLOADING) {
+                            break;
                         }
                     }
-                    isFinished();
-                } catch (Exception e) {
-                    if (retries <= DEFAULT_REQUEST_MAX_RETRIES) {
-                        try {
-                            sleep(DEFAULT_REQUEST_TIMEOUT);
-                            retries ++;
-                            run();
-                        } catch (InterruptedException e1) {
-                            e1.printStackTrace();
+                    long fillTime = SystemClock.elapsedRealtime() - fillStart;
+                    count = (int) Math.min(count, segment.getEndPos() - position + 1);
+                    if (count > 0) {
+                        // 按位置写入，不等待落盘
+                        buffer.clear();
+                        buffer.limit(count);
+                        writer.write(buffer, position);
+                        downSize += count;
+                        segment.setDownSize(downSize);
+                        DownLoadProgress.getInstance().publishProgress(fileUrl,
+                                addDownSize(count), fileSize);
+                        // 线程更新进度
+                        checkpointer.update(segment.getThreadId(), downSize, count);
+                        digester.advance(scheduler.getContiguousEnd());
+                        if (controller.onBytes(count)) {
+                            addWorker();
                         }
-                    } else {
-                        isFinished();
                     }
-                } finally {
-                    try {
-                        randomAccessFile.close();
-                        is.close();
-                        if (connection != null) {
-                            connection.disconnect();
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                    if (state != STATUS_DOWNLOADING) {
+                        return SEGMENT_STOPPED;
+                    }
+                    if (startPos + downSize > segment.getEndPos()) {
+                        return SEGMENT_COMPLETE;
+                    }
+                    if (eof) {
+                        throw new IOException("Connection closed before end of segment");
+                    }
+                    if (retireWorker()) {
+                        return SEGMENT_RETIRED;
+                    }
+                    long now = SystemClock.elapsedRealtime();
+                    if (now - lastProgress >= PROGRESS_INTERVAL) {
+                        sendMsg(STATUS_DOWNLOADING, fileUrl, count);
+                        lastProgress = now;
+                    }
+                    // 仅在整块读满时调整，段尾的短块不代表吞吐
+                    if (count == buffer.capacity()) {
+                        chunkSize = BufferPool.adaptChunkSize(chunkSize, fillTime);
+                    }
+                    if (chunkSize != buffer.capacity()) {
+                        pool.release(buffer);
+                        buffer = null;
+                        buffer = pool.acquire(chunkSize);
                     }
-                    interrupt();
                 }
-            } else {
-                isFinished();
+            } finally {
+                pool.release(buffer);
             }
         }
     }
 
     // 删除
     public void delete(String fileUrl) {
-        ThreadDownLoadDao.getInstance().delete(fileUrl);
+        ThreadDownLoadDao.getInstance().delete(downloadId);
     }
 
     // 暂停
     public void pause() {
-        DownLoadDao.getInstance().updataState(fileUrl, DownLoader.STATUS_PAUSED);
+        DownLoadRegistry.getInstance().updataState(fileUrl, DownLoader.STATUS_PAUSED);
         state = STATUS_PAUSED;
+        cancelTasks();
     }
 
     // 删除
     public void delete() {
         state = STATUS_DELETE;
+        cancelTasks();
+    }
+
+    /**
+     * 服务器文件已更新或忽略了Range：停止所有分段，全部结束后从头下载
+     *
+     * Only once per download session. A server that ignored Range is then
+     * downloaded as a single stream without ranges. A mirror that keeps
+     * answering If-Range with the whole file would otherwise throw the
+     * progress away and start over forever; the second restart fails the
+     * download.
+     */
+    private void restart() {
+        synchronized (this) {
+            if (state != STATUS_DOWNLOADING) {
+                return;
+            }
+            if (restarted) {
+                Log.w("TAG", "whole file served again after restart, giving up " + fileUrl);
+                state = STATUS_ERROR;
+            } else {
+                Log.i("TAG", "whole file served at an offset, restarting " + fileUrl);
+                restarted = true;
+                state = STATUS_PENDING;
+            }
+        }
+        // isFinished()等待检查点写入，不能持有锁调用
+        cancelTasks();
+    }
+
+    /**
+     * 重新探测并从头下载，在独立线程执行，不占用isFinished的锁
+     */
+    private void restartDownload() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (state != STATUS_PENDING) {
+                    return;
+                }
+                delete(fileUrl);
+                if (getDownLoadInfo() != null && state == STATUS_PENDING) {
+                    start();
+                }
+            }
+        }, "DownLoadRestart").start();
+    }
+
+    /**
+     * 取消分段任务，未运行的任务直接计为结束
+     *
+     * Running segments are not interrupted, see DownLoadExecutor.cancel();
+     * state has already changed, so disconnecting their connections and
+     * waking those waiting to retry makes them return.
+     */
+    private void cancelTasks() {
+        List<SegmentTask.Attempt> open;
+        synchronized (attempts) {
+            open = new ArrayList<SegmentTask.Attempt>(attempts);
+            attempts.notifyAll();
+        }
+        for (SegmentTask.Attempt attempt : open) {
+            attempt.abort();
+        }
+        for (int i = executor.cancel(this).size(); i > 0; i--) {
+            isFinished();
+        }
     }
 
     /**
@@ -345,23 +852,75 @@ public class DownLoader {
         mHandler.sendMessage(msg);
     }
 
+    private synchronized long addDownSize(long length) {
+        allDownSize += length;
+        return allDownSize;
+    }
+
     /**
      * 判断线程是否全部完成
+     *
+     * The checkpoint flush waits for the writer thread's fsync, so it runs
+     * before taking this downloader's lock.
      */
-    public synchronized void isFinished() {
-        endThreadNum++;
-        System.out.println("endThreadNum=" + endThreadNum + ",allDownSize:" + allDownSize
-                + ",fileSize=" + fileSize);
-        if (endThreadNum == threadCount && allDownSize == fileSize) {
-            sendMsg(STATUS_COMPLETE, fileUrl, 0);
-        } else if (endThreadNum == threadCount && allDownSize != fileSize) { //maybe thread info error then delete
-            if (state == STATUS_PAUSED) {
-                state = STATUS_PAUSED;
-            } else {
-                state = STATUS_ERROR;
-                sendMsg(STATUS_ERROR, fileUrl, 0);
+    public void isFinished() {
+        checkpointer.flush();
+        synchronized (this) {
+            workerCount--;
+            Log.v("TAG", "workerCount=" + workerCount + ",allDownSize:" + allDownSize
+                    + ",fileSize=" + fileSize);
+            if (workerCount > 0) {
+                return;
             }
+            if (digester != null) {
+                if (allDownSize == fileSize) {
+                    digester.finish(fileSize);
+                } else {
+                    digester.close();
+                }
+                digester = null;
+            }
+            if (watchdog != null) {
+                watchdog.stop();
+                watchdog = null;
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            if (state == STATUS_PENDING) {// 需要从头下载，丢弃旧进度
+                restartDownload();
+                return;
+            }
+            if (allDownSize == fileSize) {
+                recordHistory(STATUS_COMPLETE);
+                sendMsg(STATUS_COMPLETE, fileUrl, 0);
+            } else { //maybe thread info error then delete
+                recordHistory(state == STATUS_PAUSED || state == STATUS_DELETE ? state
+                        : STATUS_ERROR);
+                if (state == STATUS_PAUSED) {
+                    state = STATUS_PAUSED;
+                } else {
+                    state = STATUS_ERROR;
+                    sendMsg(STATUS_ERROR, fileUrl, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * 记录本次下载的耗时、速度、重试及分段数
+     */
+    private void recordHistory(int outcome) {
+        if (scheduler == null || controller == null) {
+            return;
         }
+        String host = probe != null ? Uri.parse(probe.getUrl()).getHost() : null;
+        DownLoadHistory history = new DownLoadHistory(fileUrl, host, fileSize, allDownSize
+                - sessionStartSize, sessionStartTime, SystemClock.elapsedRealtime() - sessionStart,
+                controller.getPeakThroughput(), retryBudget.getUsed(),
+                scheduler.getSegmentCount(), outcome);
+        DownLoadHistoryDao.getInstance().saveHistory(history);
     }
 
     @Override
@@ -370,7 +929,7 @@ public class DownLoader {
                 + threadCount + ", mHandler=" + mHandler + ", fileSize=" + fileSize
                 + ", downInfoList=" + downInfoList + ", state=" + state + ", notificationID="
                 + notificationID + ", allDownSize=" + allDownSize + ", downloadedSize="
-                + downloadedSize + ", endThreadNum=" + endThreadNum + ", startDown=" + startDown
+                + downloadedSize + ", workerCount=" + workerCount + ", startDown=" + startDown
                 + "]";
     }
 }
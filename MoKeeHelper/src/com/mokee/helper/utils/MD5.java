@@ -50,6 +50,27 @@ public class MD5 {
         return calculatedDigest.equalsIgnoreCase(md5);
     }
 
+    /**
+     * 优先使用下载时计算的结果，状态缺失或不完整时完整读取文件校验
+     *
+     * @param digestState StreamingDigester保存的状态
+     */
+    public static boolean checkMD5(String md5, File updateFile, byte[] digestState) {
+        ResumableMD5 streamed = ResumableMD5.restore(digestState);
+        if (streamed == null || updateFile == null || streamed.getCount() != updateFile.length()) {
+            Log.v(TAG, "No complete streamed digest, hashing the whole file");
+            return checkMD5(md5, updateFile);
+        }
+        if (TextUtils.isEmpty(md5)) {
+            Log.e(TAG, "MD5 string empty");
+            return false;
+        }
+        String calculatedDigest = streamed.digestHex();
+        Log.v(TAG, "Streamed digest: " + calculatedDigest);
+        Log.v(TAG, "Provided digest: " + md5);
+        return calculatedDigest.equalsIgnoreCase(md5);
+    }
+
     public static String calculateMD5(File updateFile) {
         MessageDigest digest;
         try {
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 分段共享的文件写入
+ *
+ * One FileChannel per download. Positional writes do not touch the channel
+ * position, so segments write concurrently without locking. Nothing is synced
+ * per chunk; {@link #sync()} is called by the checkpointer right before the
+ * segment offsets are committed, so a recorded offset is never ahead of the
+ * bytes on storage.
+ */
+public class PositionalFileWriter implements ProgressCheckpointer.SyncBarrier {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    public PositionalFileWriter(String localFile) throws IOException {
+        file = new RandomAccessFile(localFile, "rw");
+        channel = file.getChannel();
+    }
+
+    public void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * 读取已写入的数据，直到填满或到达文件末尾
+     */
+    public void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int count = channel.read(dst, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += count;
+        }
+    }
+
+    /**
+     * Segment threads are never interrupted, since an interrupt during I/O
+     * closes the channel for every segment. Should it be closed anyway,
+     * force() throws so the checkpoint is not advanced past data that may
+     * not be on storage.
+     */
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
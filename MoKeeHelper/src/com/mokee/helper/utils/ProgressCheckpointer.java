@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mokee.helper.db.ThreadDownLoadDao;
+
+/**
+ * 分段进度检查点
+ *
+ * Segment threads publish their offsets into in-memory slots. The thread
+ * that crosses the time or byte threshold only queues a commit; one writer
+ * thread shared by all downloads syncs the file and commits every dirty
+ * slot in a single transaction, while the segments keep downloading.
+ */
+public class ProgressCheckpointer {
+    private static final String TAG = "ProgressCheckpointer";
+
+    public static final long DEFAULT_INTERVAL = 500; // ms
+    public static final long DEFAULT_BYTES = 4 * 1024 * 1024;
+
+    // 所有下载共用的检查点写入线程
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+
+    private final long downloadId;
+    private final long interval;
+    private final long bytesThreshold;
+
+    private final Map<Integer, Long> dirtySlots = new HashMap<Integer, Long>();
+    private final Runnable commitTask = new Runnable() {
+        @Override
+        public void run() {
+            commit();
+        }
+    };
+    private boolean queued = false;
+    private long pendingBytes = 0;
+    private long lastFlush;
+    private SyncBarrier barrier;
+
+    /**
+     * 提交检查点前确保数据已落盘
+     */
+    public interface SyncBarrier {
+        void sync() throws IOException;
+    }
+
+    /**
+     * @param downloadId 下载记录主键
+     */
+    public ProgressCheckpointer(long downloadId) {
+        this(downloadId, DEFAULT_INTERVAL, DEFAULT_BYTES);
+    }
+
+    public ProgressCheckpointer(long downloadId, long interval, long bytesThreshold) {
+        this.downloadId = downloadId;
+        this.interval = interval;
+        this.bytesThreshold = bytesThreshold;
+        this.lastFlush = SystemClock.elapsedRealtime();
+    }
+
+    public void setSyncBarrier(SyncBarrier barrier) {
+        this.barrier = barrier;
+    }
+
+    /**
+     * 记录分段进度，达到阈值时交给写入线程提交
+     *
+     * @param threadId
+     * @param downSize 该分段已写入文件的字节数
+     * @param length 本次新增字节数
+     */
+    public void update(int threadId, long downSize, int length) {
+        synchronized (this) {
+            dirtySlots.put(threadId, downSize);
+            pendingBytes += length;
+            if (queued || (pendingBytes < bytesThreshold
+                    && SystemClock.elapsedRealtime() - lastFlush < interval)) {
+                return;
+            }
+            queued = true;
+        }
+        sWriter.execute(commitTask);
+    }
+
+    /**
+     * 立即提交并等待完成（暂停、出错、完成时调用）
+     */
+    public void flush() {
+        Future<?> done = sWriter.submit(commitTask);
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void commit() {
+        Map<Integer, Long> snapshot;
+        synchronized (this) {
+            queued = false;
+            lastFlush = SystemClock.elapsedRealtime();
+            pendingBytes = 0;
+            if (dirtySlots.isEmpty()) {
+                return;
+            }
+            snapshot = new HashMap<Integer, Long>(dirtySlots);
+            dirtySlots.clear();
+        }
+        if (barrier != null) {
+            try {
+                barrier.sync();
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to sync download data, keeping previous checkpoint", e);
+                restore(snapshot);
+                return;
+            }
+        }
+        ThreadDownLoadDao.getInstance().updataInfos(downloadId, snapshot);
+    }
+
+    private synchronized void restore(Map<Integer, Long> snapshot) {
+        for (Map.Entry<Integer, Long> entry : snapshot.entrySet()) {
+            if (!dirtySlots.containsKey(entry.getKey())) {
+                dirtySlots.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 可保存中间状态的MD5
+ *
+ * MessageDigest cannot be persisted, so a download that is resumed would
+ * have to hash its prefix again. This implementation (RFC 1321) exposes its
+ * internal state so a partial digest can be stored with the segment
+ * progress and continued later.
+ */
+public class ResumableMD5 {
+    private static final int STATE_VERSION = 1;
+
+    private static final int[] S = {
+            7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+            5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+            4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+            6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+
+    private static final int[] K = new int[64];
+
+    static {
+        for (int i = 0; i < 64; i++) {
+            K[i] = (int) (long) ((1L << 32) * Math.abs(Math.sin(i + 1)));
+        }
+    }
+
+    private int a = 0x67452301;
+    private int b = 0xefcdab89;
+    private int c = 0x98badcfe;
+    private int d = 0x10325476;
+    private long count = 0;// 已处理字节数
+    private final byte[] block = new byte[64];
+    private final int[] x = new int[16];
+
+    public ResumableMD5() {
+    }
+
+    /**
+     * 从保存的状态恢复
+     *
+     * @return 状态无效时返回null
+     */
+    public static ResumableMD5 restore(byte[] state) {
+        if (state == null || state.length < 28) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(state);
+        if (buffer.getInt() != STATE_VERSION) {
+            return null;
+        }
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.a = buffer.getInt();
+        md5.b = buffer.getInt();
+        md5.c = buffer.getInt();
+        md5.d = buffer.getInt();
+        md5.count = buffer.getLong();
+        int pending = (int) (md5.count & 63);
+        if (md5.count < 0 || buffer.remaining() != pending) {
+            return null;
+        }
+        buffer.get(md5.block, 0, pending);
+        return md5;
+    }
+
+    /**
+     * 导出当前状态
+     */
+    public byte[] save() {
+        int pending = (int) (count & 63);
+        ByteBuffer buffer = ByteBuffer.allocate(28 + pending);
+        buffer.putInt(STATE_VERSION);
+        buffer.putInt(a).putInt(b).putInt(c).putInt(d);
+        buffer.putLong(count);
+        buffer.put(block, 0, pending);
+        return buffer.array();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void update(byte[] input, int offset, int length) {
+        int pending = (int) (count & 63);
+        count += length;
+        if (pending > 0) {
+            int fill = Math.min(64 - pending, length);
+            System.arraycopy(input, offset, block, pending, fill);
+            offset += fill;
+            length -= fill;
+            if (pending + fill < 64) {
+                return;
+            }
+            transform(block, 0);
+        }
+        while (length >= 64) {
+            transform(input, offset);
+            offset += 64;
+            length -= 64;
+        }
+        if (length > 0) {
+            System.arraycopy(input, offset, block, 0, length);
+        }
+    }
+
+    public void update(ByteBuffer input) {
+        if (input.hasArray()) {
+            update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(input.remaining(), 8192)];
+        while (input.hasRemaining()) {
+            int length = Math.min(chunk.length, input.remaining());
+            input.get(chunk, 0, length);
+            update(chunk, 0, length);
+        }
+    }
+
+    /**
+     * 计算最终结果，不改变当前状态
+     *
+     * @return 32位小写十六进制
+     */
+    public String digestHex() {
+        ResumableMD5 copy = restore(save());
+        long bits = copy.count << 3;
+        int pending = (int) (copy.count & 63);
+        int padding = pending < 56 ? 56 - pending : 120 - pending;
+        byte[] tail = new byte[padding + 8];
+        tail[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            tail[padding + i] = (byte) (bits >>> (8 * i));
+        }
+        copy.update(tail, 0, tail.length);
+        StringBuilder sb = new StringBuilder(32);
+        for (int word : new int[] {
+                copy.a, copy.b, copy.c, copy.d
+        }) {
+            for (int i = 0; i < 4; i++) {
+                sb.append(String.format("%02x", (word >>> (8 * i)) & 0xff));
+            }
+        }
+        return sb.toString();
+    }
+
+    private void transform(byte[] input, int offset) {
+        for (int i = 0; i < 16; i++) {
+            int j = offset + i * 4;
+            x[i] = (input[j] & 0xff) | (input[j + 1] & 0xff) << 8 | (input[j + 2] & 0xff) << 16
+                    | (input[j + 3] & 0xff) << 24;
+        }
+        int aa = a, bb = b, cc = c, dd = d;
+        for (int i = 0; i < 64; i++) {
+            int f, g;
+            if (i < 16) {
+                f = (bb & cc) | (~bb & dd);
+                g = i;
+            } else if (i < 32) {
+                f = (dd & bb) | (~dd & cc);
+                g = (5 * i + 1) & 15;
+            } else if (i < 48) {
+                f = bb ^ cc ^ dd;
+                g = (3 * i + 5) & 15;
+            } else {
+                f = cc ^ (bb | ~dd);
+                g = (7 * i) & 15;
+            }
+            int temp = dd;
+            dd = cc;
+            cc = bb;
+            bb = bb + Integer.rotateLeft(aa + f + K[i] + x[g], S[i]);
+            aa = temp;
+        }
+        a += aa;
+        b += bb;
+        c += cc;
+        d += dd;
+    }
+}
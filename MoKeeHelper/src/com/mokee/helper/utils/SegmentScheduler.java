@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.os.SystemClock;
+
+import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.misc.ThreadDownLoadInfo;
+
+/**
+ * 动态分段调度
+ *
+ * Workers pick up unowned segments first. When none are left, a worker
+ * steals the back half of the remaining range of the active segment that
+ * is expected to finish last.
+ * The victim's shortened end and the new segment are persisted together,
+ * so an interrupted download resumes with the split layout. The write runs
+ * outside the scheduler's lock, splits one at a time, and a split that
+ * could not be written is undone in memory.
+ */
+public class SegmentScheduler {
+    // Ranges smaller than this are not worth a new connection
+    public static final long MIN_SPLIT_SIZE = 1024 * 1024;
+
+    private final String fileUrl;
+    private final long downloadId;
+    private final List<Slot> slots = new ArrayList<Slot>();
+    private int nextThreadId = 0;
+    private boolean splittable = true;
+    // 拆分逐个写入数据库，不占用调度锁
+    private final Object splitLock = new Object();
+
+    private static class Slot {
+        final ThreadDownLoadInfo info;
+        boolean active;
+        long activeSince;
+        long downSizeSince;
+
+        Slot(ThreadDownLoadInfo info) {
+            this.info = info;
+        }
+
+        long remaining() {
+            return info.getEndPos() - (info.getStartPos() + info.getDownSize()) + 1;
+        }
+
+        /**
+         * 预计剩余时间，尚无进度的分段视为最慢
+         */
+        long remainingTime(long now) {
+            long elapsed = now - activeSince;
+            long done = info.getDownSize() - downSizeSince;
+            if (elapsed <= 0 || done <= 0) {
+                return Long.MAX_VALUE;
+            }
+            return remaining() * elapsed / done;
+        }
+    }
+
+    /**
+     * 一次拆分：被拆分的分段及拆出的新分段
+     */
+    private static class Split {
+        final Slot victim;
+        final Slot stolen;
+
+        Split(Slot victim, Slot stolen) {
+            this.victim = victim;
+            this.stolen = stolen;
+        }
+    }
+
+    public SegmentScheduler(String fileUrl, long downloadId, List<ThreadDownLoadInfo> infos) {
+        this.fileUrl = fileUrl;
+        this.downloadId = downloadId;
+        for (ThreadDownLoadInfo info : infos) {
+            slots.add(new Slot(info));
+            nextThreadId = Math.max(nextThreadId, info.getThreadId() + 1);
+        }
+    }
+
+    /**
+     * 服务器不支持Range时不能拆分
+     */
+    public synchronized void setSplittable(boolean splittable) {
+        this.splittable = splittable;
+    }
+
+    /**
+     * 标记分段开始下载
+     */
+    public synchronized void activate(ThreadDownLoadInfo info) {
+        Slot slot = find(info);
+        if (slot != null) {
+            slot.active = true;
+            slot.activeSince = SystemClock.elapsedRealtime();
+            slot.downSizeSince = info.getDownSize();
+        }
+    }
+
+    /**
+     * 标记分段停止下载
+     */
+    public synchronized void deactivate(ThreadDownLoadInfo info) {
+        Slot slot = find(info);
+        if (slot != null) {
+            slot.active = false;
+        }
+    }
+
+    /**
+     * 获取下一个下载范围：优先领取无人下载的分段，否则拆分最慢的分段
+     *
+     * @param finished 刚完成的分段，新连接传null
+     * @return 分段，无可下载范围时返回null
+     */
+    public ThreadDownLoadInfo next(ThreadDownLoadInfo finished) {
+        synchronized (this) {
+            if (finished != null) {
+                deactivate(finished);
+            }
+            ThreadDownLoadInfo info = claim();
+            if (info != null || !splittable) {
+                return info;
+            }
+        }
+        synchronized (splitLock) {
+            Split split;
+            synchronized (this) {
+                // 等待期间可能有分段被释放
+                ThreadDownLoadInfo info = claim();
+                if (info != null || !splittable) {
+                    return info;
+                }
+                split = split();
+                if (split == null) {
+                    return null;
+                }
+            }
+            ThreadDownLoadInfo stolen = split.stolen.info;
+            if (ThreadDownLoadDao.getInstance().splitInfo(downloadId,
+                    split.victim.info.getThreadId(), stolen.getStartPos() - 1, stolen)) {
+                return stolen;
+            }
+            synchronized (this) {
+                // 未能写入，把范围还给原分段
+                split.victim.info.setEndPos(stolen.getEndPos());
+                slots.remove(split.stolen);
+            }
+            return null;
+        }
+    }
+
+    private ThreadDownLoadInfo claim() {
+        for (Slot slot : slots) {
+            if (!slot.active && slot.remaining() > 0) {
+                activate(slot.info);
+                return slot.info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 在内存中拆分预计最后完成的分段，调用方负责写入数据库
+     */
+    private Split split() {
+        long now = SystemClock.elapsedRealtime();
+        Slot victim = null;
+        for (Slot slot : slots) {
+            if (!slot.active || slot.remaining() < MIN_SPLIT_SIZE * 2) {
+                continue;
+            }
+            if (victim == null) {
+                victim = slot;
+                continue;
+            }
+            long slotTime = slot.remainingTime(now);
+            long victimTime = victim.remainingTime(now);
+            if (slotTime > victimTime
+                    || (slotTime == victimTime && slot.remaining() > victim.remaining())) {
+                victim = slot;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        ThreadDownLoadInfo info = victim.info;
+        long oldEnd = info.getEndPos();
+        long newEnd = oldEnd - victim.remaining() / 2;
+        ThreadDownLoadInfo stolen = new ThreadDownLoadInfo(nextThreadId++, newEnd + 1, oldEnd, 0,
+                fileUrl);
+        info.setEndPos(newEnd);
+        Slot slot = new Slot(stolen);
+        slots.add(slot);
+        activate(stolen);
+        return new Split(victim, slot);
+    }
+
+    /**
+     * 当前分段数，含拆分出的分段
+     */
+    public synchronized int getSegmentCount() {
+        return slots.size();
+    }
+
+    /**
+     * 从文件开头起连续已下载的长度
+     */
+    public synchronized long getContiguousEnd() {
+        List<Slot> ordered = new ArrayList<Slot>(slots);
+        Collections.sort(ordered, new Comparator<Slot>() {
+            @Override
+            public int compare(Slot lhs, Slot rhs) {
+                long l = lhs.info.getStartPos(), r = rhs.info.getStartPos();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        long end = 0;
+        for (Slot slot : ordered) {
+            ThreadDownLoadInfo info = slot.info;
+            if (info.getStartPos() != end) {
+                break;
+            }
+            long limit = info.getEndPos() + 1;
+            long done = Math.min(info.getStartPos() + info.getDownSize(), limit);
+            if (done < limit) {
+                return done;
+            }
+            end = limit;
+        }
+        return end;
+    }
+
+    private Slot find(ThreadDownLoadInfo info) {
+        for (Slot slot : slots) {
+            if (slot.info == info) {
+                return slot;
+            }
+        }
+        return null;
+    }
+}
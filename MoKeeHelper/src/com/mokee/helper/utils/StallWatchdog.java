@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分段连接停滞检测
+ *
+ * Every connection of a download reports the bytes it reads. Once a second
+ * the counts are moved into a sliding window per connection. A connection
+ * that read nothing for a whole window is stalled, catching a read that
+ * blocks short of the read timeout. One that is still making progress but
+ * far below the median of its peers is only slow; its owner decides whether
+ * a new connection for the remaining range is worth it. A slow connection
+ * without peers is left alone.
+ */
+public class StallWatchdog {
+    public static final long TICK = 1000; // ms
+    public static final int WINDOW_TICKS = 10;
+    // Below this fraction of the peers' median throughput a connection is slow
+    public static final float MIN_PEER_RATIO = 0.2f;
+
+    private static ScheduledExecutorService timer;
+
+    /**
+     * 被检测的连接
+     */
+    public interface Target {
+        /**
+         * 整个窗口没有读到数据，在看门狗线程调用
+         *
+         * @return 是否已断开连接，返回false时下个窗口再检测
+         */
+        boolean onStalled();
+
+        /**
+         * 仍有进度但远慢于其他连接，在看门狗线程调用
+         *
+         * @return 是否已断开连接，返回false时下个窗口再检测
+         */
+        boolean onSlow();
+    }
+
+    /**
+     * 单个连接的统计
+     */
+    public class Watch {
+        private final Target target;
+        private final AtomicLong pending = new AtomicLong();
+        private final long[] window = new long[WINDOW_TICKS];
+        private int ticks = 0;
+
+        Watch(Target target) {
+            this.target = target;
+        }
+
+        public void onBytes(int count) {
+            pending.addAndGet(count);
+        }
+
+        public void close() {
+            synchronized (StallWatchdog.this) {
+                watches.remove(this);
+            }
+        }
+
+        /**
+         * 窗口未满时返回-1
+         */
+        long tick() {
+            window[ticks % WINDOW_TICKS] = pending.getAndSet(0);
+            ticks++;
+            if (ticks < WINDOW_TICKS) {
+                return -1;
+            }
+            long bytes = 0;
+            for (long b : window) {
+                bytes += b;
+            }
+            return bytes * 1000 / (WINDOW_TICKS * TICK);
+        }
+
+        void reset() {
+            Arrays.fill(window, 0);
+            ticks = 0;
+        }
+    }
+
+    private final List<Watch> watches = new ArrayList<Watch>();
+    private ScheduledFuture<?> future;
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "DownLoadWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return timer;
+    }
+
+    public synchronized void start() {
+        if (future == null) {
+            future = getTimer().scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        check();
+                    } catch (RuntimeException e) {
+                        // 异常会取消定时任务，之后的窗口不再检测
+                        e.printStackTrace();
+                    }
+                }
+            }, TICK, TICK, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (future != null) {
+            future.cancel(false);
+            future = null;
+        }
+        watches.clear();
+    }
+
+    /**
+     * 开始检测一个连接，读取数据前调用
+     */
+    public synchronized Watch watch(Target target) {
+        Watch watch = new Watch(target);
+        watches.add(watch);
+        return watch;
+    }
+
+    private void check() {
+        List<Watch> stalled = new ArrayList<Watch>();
+        List<Watch> slow = new ArrayList<Watch>();
+        synchronized (this) {
+            int size = watches.size();
+            long[] speeds = new long[size];
+            List<Long> full = new ArrayList<Long>();
+            for (int i = 0; i < size; i++) {
+                speeds[i] = watches.get(i).tick();
+                if (speeds[i] >= 0) {
+                    full.add(speeds[i]);
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                long speed = speeds[i];
+                if (speed < 0) {
+                    continue;
+                }
+                if (speed == 0) {
+                    stalled.add(watches.get(i));
+                } else if (speed < peerMedian(full, speed) * MIN_PEER_RATIO) {
+                    slow.add(watches.get(i));
+                }
+            }
+        }
+        for (Watch watch : stalled) {
+            report(watch, watch.target.onStalled());
+        }
+        for (Watch watch : slow) {
+            report(watch, watch.target.onSlow());
+        }
+    }
+
+    private void report(Watch watch, boolean disconnected) {
+        if (disconnected) {
+            watch.close();
+        } else {
+            synchronized (this) {
+                watch.reset();
+            }
+        }
+    }
+
+    /**
+     * 其他连接的中位数，没有其他连接时为0
+     */
+    private static long peerMedian(List<Long> speeds, long own) {
+        List<Long> peers = new ArrayList<Long>(speeds);
+        peers.remove(Long.valueOf(own));
+        if (peers.isEmpty()) {
+            return 0;
+        }
+        long[] sorted = new long[peers.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = peers.get(i);
+        }
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.mokee.helper.db.DownLoadDao;
+
+/**
+ * 下载过程中按顺序计算MD5
+ *
+ * Hashes the contiguous downloaded prefix of the file on a background thread
+ * while the segments are still transferring, reading the freshly written
+ * bytes back from the page cache. The digest state is stored in
+ * download_info so a resumed download continues hashing where it stopped,
+ * and completion only has to hash the remaining tail.
+ */
+public class StreamingDigester {
+    private static final String TAG = "StreamingDigester";
+
+    private static final int READ_SIZE = 256 * 1024;
+    // 每处理这么多数据保存一次状态
+    private static final long SAVE_BYTES = 8 * 1024 * 1024;
+    private static final long CLOSE_TIMEOUT = 2000; // ms
+
+    private final String fileUrl;
+    private final PositionalFileWriter writer;
+    private final ExecutorService worker;
+    private final ResumableMD5 md5;
+
+    private long target = 0;// 可计算到的位置
+    private boolean scheduled = false;
+    private long savedAt;
+    private volatile boolean failed = false;
+    private volatile boolean stopped = false;
+
+    private final Runnable advanceTask = new Runnable() {
+        @Override
+        public void run() {
+            long end;
+            synchronized (StreamingDigester.this) {
+                scheduled = false;
+                end = target;
+            }
+            advanceTo(end);
+        }
+    };
+
+    /**
+     * @param state 已保存的状态，超出已确认落盘的前缀时丢弃
+     * @param durablePrefix 数据库记录的连续已下载长度
+     */
+    public StreamingDigester(String fileUrl, PositionalFileWriter writer, byte[] state,
+            long durablePrefix) {
+        this.fileUrl = fileUrl;
+        this.writer = writer;
+        ResumableMD5 restored = ResumableMD5.restore(state);
+        if (restored == null || restored.getCount() > durablePrefix) {
+            restored = new ResumableMD5();
+        }
+        this.md5 = restored;
+        this.savedAt = md5.getCount();
+        this.worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+            }
+        });
+    }
+
+    /**
+     * 连续前缀增长，异步计算到该位置
+     */
+    public synchronized void advance(long prefix) {
+        if (prefix <= target) {
+            return;
+        }
+        target = prefix;
+        if (!scheduled && !worker.isShutdown()) {
+            scheduled = true;
+            worker.execute(advanceTask);
+        }
+    }
+
+    /**
+     * 计算到文件末尾并保存状态，之后不再接受新数据
+     *
+     * @return 是否成功覆盖整个文件
+     */
+    public boolean finish(final long fileSize) {
+        synchronized (this) {
+            target = Math.max(target, fileSize);
+        }
+        Future<?> done = worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                advanceTo(fileSize);
+                save();
+            }
+        });
+        worker.shutdown();
+        try {
+            done.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+        return !failed && md5.getCount() == fileSize;
+    }
+
+    /**
+     * 停止计算并保存当前状态，须在关闭文件前调用
+     */
+    public void close() {
+        stopped = true;
+        try {
+            worker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // finish() already saved
+        }
+        worker.shutdown();
+        try {
+            worker.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void advanceTo(long end) {
+        if (failed || md5.getCount() >= end) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        try {
+            while (md5.getCount() < end && !stopped) {
+                buffer.clear();
+                buffer.limit((int) Math.min(READ_SIZE, end - md5.getCount()));
+                writer.read(buffer, md5.getCount());
+                buffer.flip();
+                md5.update(buffer);
+                if (md5.getCount() - savedAt >= SAVE_BYTES) {
+                    save();
+                }
+            }
+        } catch (IOException e) {
+            // 文件已关闭等，完成时回退到完整校验
+            Log.w(TAG, "digest stopped at " + md5.getCount(), e);
+            failed = true;
+        }
+    }
+
+    private void save() {
+        if (failed) {
+            return;
+        }
+        DownLoadDao.getInstance().updataDigest(fileUrl, md5.save());
+        savedAt = md5.getCount();
+    }
+}
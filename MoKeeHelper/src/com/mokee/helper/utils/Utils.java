@@ -22,6 +22,8 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.AlarmManager;
 import android.app.NotificationManager;
@@ -40,13 +42,16 @@ import android.os.storage.StorageVolume;
 import android.preference.PreferenceFragment;
 
 import com.mokee.helper.R;
-import com.mokee.helper.db.DownLoadDao;
-import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.db.DownLoadRegistry;
+import com.mokee.helper.misc.BuildVersion;
 import com.mokee.helper.misc.Constants;
 import com.mokee.helper.misc.DownLoadInfo;
+import com.mokee.helper.misc.ItemInfo;
 import com.mokee.helper.service.UpdateCheckService;
 
 public class Utils {
+    // 进度条刻度，下载大小可能超过int范围
+    public static final int PROGRESS_MAX = 10000;
 
     public static File makeUpdateFolder() {
         return new File(Environment.getExternalStorageDirectory().getAbsolutePath(),
@@ -58,6 +63,16 @@ public class Utils {
                 Constants.EXTRAS_FOLDER);
     }
 
+    /**
+     * 将64位进度换算为进度条刻度
+     */
+    public static int scaleProgress(long done, long total) {
+        if (total <= 0) {
+            return 0;
+        }
+        return (int) (Math.min(done, total) * PROGRESS_MAX / total);
+    }
+
     /**
      * 检测rom是否已下载
      */
@@ -188,69 +203,11 @@ public class Utils {
     }
 
     /**
-     * 截取日期
+     * 判断版本新旧，无法识别的文件名视为旧版本
      */
-    public static String subBuildDate(String name, boolean sameVersion) {
-        String[] strs = name.split("-");
-        String date;
-        if (name.toLowerCase().startsWith("ota")) {
-            date = strs[4];
-        } else {
-            date = strs[2];
-        }
-        if (!isNum(date)) return "0";
-        if (date.startsWith("20")) {
-            date = date.substring(2, date.length());
-        }
-        if (!sameVersion) {
-            if (date.length() > 6) {
-                date = date.substring(0, 6);
-            }
-        }
-        return date;
-    }
-
-    public static boolean isNum(String str) {
-        return str.matches("^[-+]?(([0-9]+)([.]([0-9]+))?|([.]([0-9]+))?)$");
-    }
-
-    /**
-     * 截取日期长度
-     */
-    public static int getBuildDateLength(String name) {
-        String[] strs = name.split("-");
-        String date = strs[2];
-        if (date.startsWith("20")) {
-            date = date.substring(2, date.length());
-        }
-        return date.length();
-    }
-
-    /**
-     * 截取版本
-     */
-    public static String subMoKeeVersion(String name) {
-        String[] strs = name.split("-");
-        String version = strs[0];
-        if (name.toLowerCase().startsWith("ota")) {
-            version = strs[1];
-        }
-        version = version.substring(2, version.length());
-        return version;
-    }
-
-    /**
-     * 判断版本新旧
-     */
-    public static boolean isNewVersion(String itemName) {
-        int nowDateLength = getBuildDateLength(Utils.getInstalledVersion());
-        int itemDateLength = getBuildDateLength(itemName);
-        boolean sameVersion = (nowDateLength == itemDateLength);
-        int nowDate = Integer.valueOf(subBuildDate(Utils.getInstalledVersion(), sameVersion));
-        int itemDate = Integer.valueOf(subBuildDate(itemName, sameVersion));
-        float nowVersion = Float.valueOf(subMoKeeVersion(Utils.getInstalledVersion()));
-        float itemVersion = Float.valueOf(subMoKeeVersion(itemName));
-        return (itemDate > nowDate && itemVersion >= nowVersion);
+    public static boolean isNewVersion(ItemInfo info) {
+        BuildVersion version = info.getBuildVersion();
+        return version != null && version.isNewerThanInstalled();
     }
 
     public static void setSummaryFromString(PreferenceFragment prefFragment, String preference,
@@ -289,13 +246,22 @@ public class Utils {
     }
 
     /**
-     * 文件目录清理
+     * 文件目录清理，相关下载记录一次性删除
      */
     public static boolean deleteDir(File dir) {
+        List<String> urls = new ArrayList<String>();
+        try {
+            return deleteDir(dir, urls);
+        } finally {
+            DownLoadRegistry.getInstance().delete(urls);
+        }
+    }
+
+    private static boolean deleteDir(File dir, List<String> urls) {
         if (dir.isDirectory()) {
             String[] children = dir.list();
             for (String aChildren : children) {
-                boolean success = deleteDir(new File(dir, aChildren));
+                boolean success = deleteDir(new File(dir, aChildren), urls);
                 if (!success) {
                     return false;
                 }
@@ -303,13 +269,12 @@ public class Utils {
         } else {
             DownLoadInfo dli = null;
             if (dir.getName().endsWith(".partial")) {
-                dli = DownLoadDao.getInstance().getDownLoadInfoByName(dir.getName());
+                dli = DownLoadRegistry.getInstance().getDownLoadInfoByName(dir.getName());
             } else {
-                dli = DownLoadDao.getInstance().getDownLoadInfoByName(dir.getName() + ".partial");
+                dli = DownLoadRegistry.getInstance().getDownLoadInfoByName(dir.getName() + ".partial");
             }
             if (dli != null) {
-                ThreadDownLoadDao.getInstance().delete(dli.getUrl());
-                DownLoadDao.getInstance().delete(dli.getUrl());
+                urls.add(dli.getUrl());
             }
         }
         // The directory is now empty so delete it
@@ -252,7 +252,7 @@ public class ItemPreference extends Preference implements OnClickListener, OnLon
                 mUpdatesPref.setTag(Constants.INTENT_FLAG_GET_UPDATE);
             } else if (TextUtils.isEmpty(mItemInfo.getDescription())) {
                 mTitleText.setText(mItemInfo.getFileName());
-                mSummaryText.setText(Utils.isNewVersion(mItemInfo.getFileName()) ? R.string.new_update_summary : R.string.old_update_summary);
+                mSummaryText.setText(Utils.isNewVersion(mItemInfo) ? R.string.new_update_summary : R.string.old_update_summary);
                 mUpdatesPref.setTag(Constants.INTENT_FLAG_GET_UPDATE);
             } else {
                 mTitleText.setText(mItemInfo.getDescription());
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+/**
+ * 从1024版本数据库逐版本升级
+ */
+public class DBManagerTest extends AndroidTestCase {
+    private static final int VERSION_LEGACY = 1024;
+    private static final int VERSION_CURRENT = 1028;
+
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        db = SQLiteDatabase.create(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.close();
+        super.tearDown();
+    }
+
+    /**
+     * 1024版本的表结构
+     */
+    private void createLegacySchema() {
+        db.execSQL("CREATE TABLE thread_info(_id integer PRIMARY KEY AUTOINCREMENT, thread_id integer, "
+                + "start_pos long, end_pos long, down_size long,url text)");
+        db.execSQL("CREATE TABLE download_info(_id integer PRIMARY KEY AUTOINCREMENT, down_id integer, "
+                + "url text,flag integer,local_file text,file_name text,file_size long,state integer)");
+        db.setVersion(VERSION_LEGACY);
+    }
+
+    private void insertDownload(long id, String url) {
+        db.execSQL("INSERT INTO download_info(_id, down_id, url, flag, local_file, file_name, file_size, state) "
+                + "VALUES (?, ?, ?, 1024, '/dev/null', 'update.zip', 3000, 0)", new Object[] {
+                id, id, url
+        });
+    }
+
+    private void insertLegacyThread(int threadId, long startPos, long downSize, String url) {
+        db.execSQL("INSERT INTO thread_info(thread_id, start_pos, end_pos, down_size, url) "
+                + "VALUES (?, ?, ?, ?, ?)", new Object[] {
+                threadId, startPos, startPos + 999, downSize, url
+        });
+    }
+
+    /**
+     * 与SQLiteOpenHelper相同：先配置连接，再在事务内升级
+     */
+    private void upgrade(SQLiteDatabase database, int oldVersion) {
+        DBManager manager = DBManager.getInstance(getContext());
+        manager.onConfigure(database);
+        database.beginTransaction();
+        try {
+            manager.onUpgrade(database, oldVersion, VERSION_CURRENT);
+            database.setVersion(VERSION_CURRENT);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    private static List<String> columns(SQLiteDatabase database, String table) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndex("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    private static boolean hasObject(SQLiteDatabase database, String type, String name) {
+        return DatabaseUtils.longForQuery(database,
+                "SELECT count(*) FROM sqlite_master WHERE type=? AND name=?", new String[] {
+                        type, name
+                }) > 0;
+    }
+
+    private long count(String sql) {
+        return DatabaseUtils.longForQuery(db, sql, null);
+    }
+
+    public void testUpgradeAddsColumnsAndTables() {
+        createLegacySchema();
+        upgrade(db, VERSION_LEGACY);
+
+        List<String> downloadColumns = columns(db, "download_info");
+        assertTrue(downloadColumns.contains("validator"));
+        assertTrue(downloadColumns.contains("digest_state"));
+        List<String> threadColumns = columns(db, "thread_info");
+        assertTrue(threadColumns.contains("download_id"));
+        assertFalse(threadColumns.contains("url"));
+        assertTrue(hasObject(db, "table", "download_history"));
+        assertTrue(hasObject(db, "index", "thread_info_download_id"));
+        assertTrue(hasObject(db, "index", "download_info_url"));
+        assertFalse(hasObject(db, "table", "thread_info_new"));
+        assertEquals(VERSION_CURRENT, db.getVersion());
+    }
+
+    public void testUpgradeMatchesFreshSchema() {
+        createLegacySchema();
+        upgrade(db, VERSION_LEGACY);
+
+        SQLiteDatabase fresh = SQLiteDatabase.create(null);
+        try {
+            DBManager.getInstance(getContext()).onCreate(fresh);
+            for (String table : new String[] {
+                    "download_info", "thread_info", "download_history"
+            }) {
+                assertEquals(table, columns(fresh, table), columns(db, table));
+            }
+        } finally {
+            fresh.close();
+        }
+    }
+
+    public void testUpgradeKeepsSegmentsOfKnownDownloads() {
+        createLegacySchema();
+        insertDownload(1, "http://download.invalid/a.zip");
+        insertDownload(2, "http://download.invalid/b.zip");
+        // 同一URL的重复记录，分段归到最新的一条
+        insertDownload(3, "http://download.invalid/a.zip");
+        insertLegacyThread(0, 0, 100, "http://download.invalid/a.zip");
+        insertLegacyThread(1, 1000, 200, "http://download.invalid/a.zip");
+        insertLegacyThread(0, 0, 300, "http://download.invalid/b.zip");
+        // 没有下载记录的分段被丢弃
+        insertLegacyThread(0, 0, 400, "http://download.invalid/orphan.zip");
+
+        upgrade(db, VERSION_LEGACY);
+
+        assertEquals(3, count("SELECT count(*) FROM thread_info"));
+        assertEquals(2, count("SELECT count(*) FROM thread_info WHERE download_id=3"));
+        assertEquals(300, count("SELECT down_size FROM thread_info WHERE download_id=2"));
+        assertEquals(1300, count("SELECT sum(start_pos + down_size) FROM thread_info WHERE download_id=3"));
+        assertEquals(0, count("SELECT count(*) FROM thread_info WHERE download_id=1"));
+    }
+
+    public void testSegmentsCascadeAfterUpgrade() {
+        createLegacySchema();
+        insertDownload(1, "http://download.invalid/a.zip");
+        insertLegacyThread(0, 0, 100, "http://download.invalid/a.zip");
+        upgrade(db, VERSION_LEGACY);
+
+        db.delete("download_info", "_id=?", new String[] {
+                "1"
+        });
+        assertEquals(0, count("SELECT count(*) FROM thread_info"));
+    }
+
+    public void testUpgradeFromIntermediateVersion() {
+        createLegacySchema();
+        db.execSQL("ALTER TABLE download_info ADD COLUMN validator text");
+        insertDownload(1, "http://download.invalid/a.zip");
+        db.execSQL("UPDATE download_info SET validator='\"etag\"' WHERE _id=1");
+
+        upgrade(db, 1025);
+
+        assertEquals("\"etag\"", DatabaseUtils.stringForQuery(db,
+                "SELECT validator FROM download_info WHERE _id=1", null));
+        assertTrue(columns(db, "download_info").contains("digest_state"));
+        assertTrue(hasObject(db, "table", "download_history"));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * 文件名解析及版本排序
+ */
+public class BuildVersionTest extends TestCase {
+
+    private static ItemInfo item(String fileName) {
+        return new ItemInfo.Builder().setFileName(fileName).build();
+    }
+
+    public void testParseBuild() {
+        BuildVersion version = BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY.zip");
+        assertNotNull(version);
+        assertFalse(version.isOta());
+        assertEquals(44.2f, version.getVersion());
+        assertEquals(141020, version.getDate());
+        assertEquals(141020, version.getShortDate());
+        assertEquals("nightly", version.getChannel());
+    }
+
+    public void testParseStripsCenturyAndKeepsTime() {
+        BuildVersion version = BuildVersion.parse("MK50.0-hammerhead-201412011830-RELEASE.zip");
+        assertNotNull(version);
+        assertEquals(1412011830, version.getDate());
+        assertEquals(141201, version.getShortDate());
+        assertEquals("release", version.getChannel());
+    }
+
+    public void testParseOta() {
+        BuildVersion version = BuildVersion.parse("OTA-MK44.2-hammerhead-141010-141020");
+        assertNotNull(version);
+        assertTrue(version.isOta());
+        assertEquals(44.2f, version.getVersion());
+        // OTA包按目标日期比较
+        assertEquals(141020, version.getDate());
+        assertNull(version.getChannel());
+    }
+
+    public void testParseRejectsUnknownNames() {
+        assertNull(BuildVersion.parse(null));
+        assertNull(BuildVersion.parse("update.zip"));
+        assertNull(BuildVersion.parse("MK44.2-hammerhead"));
+        assertNull(BuildVersion.parse("MK-hammerhead-141020-NIGHTLY.zip"));
+        assertNull(BuildVersion.parse("MKxx-hammerhead-141020-NIGHTLY.zip"));
+        assertNull(BuildVersion.parse("OTA-MK44.2-hammerhead-141010"));
+    }
+
+    public void testNonNumericDateIsOldest() {
+        BuildVersion version = BuildVersion.parse("MK44.2-hammerhead-test-NIGHTLY.zip");
+        assertNotNull(version);
+        assertEquals(0, version.getDate());
+        assertFalse(version.isNewerThan(BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY.zip")));
+    }
+
+    public void testIsNewerThan() {
+        BuildVersion installed = BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY");
+        assertTrue(BuildVersion.parse("MK44.2-hammerhead-141021-NIGHTLY.zip")
+                .isNewerThan(installed));
+        assertTrue(BuildVersion.parse("MK50.0-hammerhead-141021-NIGHTLY.zip")
+                .isNewerThan(installed));
+        // 版本降低或日期相同都不算新版本
+        assertFalse(BuildVersion.parse("MK44.1-hammerhead-141021-NIGHTLY.zip")
+                .isNewerThan(installed));
+        assertFalse(BuildVersion.parse("MK44.2-hammerhead-141020-RELEASE.zip")
+                .isNewerThan(installed));
+        assertFalse(BuildVersion.parse("MK44.2-hammerhead-141019-NIGHTLY.zip")
+                .isNewerThan(installed));
+    }
+
+    public void testIsNewerThanAcrossDateFormats() {
+        BuildVersion shortDate = BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY");
+        BuildVersion sameDay = BuildVersion.parse("MK44.2-hammerhead-1410201830-NIGHTLY.zip");
+        BuildVersion nextDay = BuildVersion.parse("MK44.2-hammerhead-1410210100-NIGHTLY.zip");
+        // 日期格式不同时只比较前6位
+        assertFalse(sameDay.isNewerThan(shortDate));
+        assertTrue(nextDay.isNewerThan(shortDate));
+        assertTrue(nextDay.isNewerThan(sameDay));
+    }
+
+    public void testCompareToOrdersByDateThenVersion() {
+        BuildVersion a = BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY.zip");
+        BuildVersion b = BuildVersion.parse("MK44.2-hammerhead-1410201830-NIGHTLY.zip");
+        BuildVersion c = BuildVersion.parse("MK50.0-hammerhead-1410201830-NIGHTLY.zip");
+        BuildVersion d = BuildVersion.parse("MK44.2-hammerhead-141021-RELEASE.zip");
+        List<BuildVersion> versions = new ArrayList<BuildVersion>(Arrays.asList(d, c, b, a));
+        Collections.sort(versions);
+        assertEquals(Arrays.asList(a, b, c, d), versions);
+        assertEquals(0, a.compareTo(BuildVersion.parse(a.getName())));
+    }
+
+    public void testEqualityByName() {
+        BuildVersion a = BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY.zip");
+        BuildVersion b = BuildVersion.parse("MK44.2-hammerhead-141020-NIGHTLY.zip");
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        assertFalse(a.equals(BuildVersion.parse("MK44.2-hammerhead-141020-RELEASE.zip")));
+    }
+
+    public void testNewestFirstPutsUnknownNamesLast() {
+        ItemInfo unknown = item("update.zip");
+        ItemInfo old = item("MK44.2-hammerhead-141010-NIGHTLY.zip");
+        ItemInfo newest = item("MK44.2-hammerhead-141020-NIGHTLY.zip");
+        ItemInfo middle = item("MK44.2-hammerhead-141015-RELEASE.zip");
+        List<ItemInfo> items = new ArrayList<ItemInfo>(Arrays.asList(unknown, old, newest, middle));
+        Collections.sort(items, ItemInfo.NEWEST_FIRST);
+        assertEquals(Arrays.asList(newest, middle, old, unknown), items);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.misc;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+
+import android.test.AndroidTestCase;
+
+/**
+ * 列表缓存的读写及旧格式迁移
+ */
+public class StateTest extends AndroidTestCase {
+    private static final String FILENAME = "state-test.state";
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getContext().getCacheDir(), FILENAME);
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static LinkedList<ItemInfo> sampleItems() {
+        LinkedList<ItemInfo> items = new LinkedList<ItemInfo>();
+        items.add(new ItemInfo.Builder()
+                .setFileName("MK44.2-hammerhead-141020-NIGHTLY.zip")
+                .setFileSize("123456789")
+                .setMD5Sum("0123456789abcdef0123456789abcdef")
+                .setDownloadUrl("http://download.invalid/MK44.2-hammerhead-141020-NIGHTLY.zip")
+                .setChangelog("http://download.invalid/changelog")
+                .build());
+        items.add(new ItemInfo.Builder()
+                .setFileName("gapps.zip")
+                .setFileSize("42")
+                .setMD5Sum("aa")
+                .setDownloadUrl("http://download.invalid/gapps.zip")
+                .setChangelog("")
+                .setDescription("谷歌服务")
+                .setCheckflag("gms")
+                .build());
+        return items;
+    }
+
+    private static void assertSameItems(LinkedList<ItemInfo> expected,
+            LinkedList<ItemInfo> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            ItemInfo e = expected.get(i), a = actual.get(i);
+            assertEquals(e.getFileName(), a.getFileName());
+            assertEquals(e.getFileSize(), a.getFileSize());
+            assertEquals(e.getMd5Sum(), a.getMd5Sum());
+            assertEquals(e.getDownloadUrl(), a.getDownloadUrl());
+            assertEquals(e.getChangelogUrl(), a.getChangelogUrl());
+            assertEquals(e.getDescription(), a.getDescription());
+            assertEquals(e.getCheckflag(), a.getCheckflag());
+            assertEquals(e.getBuildVersion(), a.getBuildVersion());
+        }
+    }
+
+    private int readMagic() throws Exception {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testRoundTrip() {
+        LinkedList<ItemInfo> items = sampleItems();
+        State.saveMKState(getContext(), items, FILENAME);
+        assertTrue(file.exists());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertSameItems(items, State.loadMKState(getContext(), FILENAME));
+    }
+
+    public void testEmptyList() {
+        State.saveMKState(getContext(), new LinkedList<ItemInfo>(), FILENAME);
+        assertTrue(file.exists());
+        assertTrue(State.loadMKState(getContext(), FILENAME).isEmpty());
+    }
+
+    public void testMissingFile() {
+        assertTrue(State.loadMKState(getContext(), FILENAME).isEmpty());
+    }
+
+    public void testLegacyFormatIsMigrated() throws Exception {
+        LinkedList<ItemInfo> items = sampleItems();
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        out.writeObject(items);
+        out.close();
+
+        assertSameItems(items, State.loadMKState(getContext(), FILENAME));
+        // 读取后已改写为新格式
+        assertEquals(0x4d4b5354, readMagic());
+        assertSameItems(items, State.loadMKState(getContext(), FILENAME));
+    }
+
+    public void testTruncatedFileIsEmpty() throws Exception {
+        State.saveMKState(getContext(), sampleItems(), FILENAME);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+        assertTrue(State.loadMKState(getContext(), FILENAME).isEmpty());
+    }
+
+    public void testUnknownFormatIsEmpty() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] {
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12
+        });
+        out.close();
+        assertTrue(State.loadMKState(getContext(), FILENAME).isEmpty());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.requests;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.mokee.helper.utils.BackoffPolicy;
+
+/**
+ * Volley失败转为延迟重试
+ */
+public class BackoffRetryPolicyTest extends TestCase {
+
+    private static VolleyError statusError(int code) {
+        return new VolleyError(new NetworkResponse(code, new byte[0],
+                Collections.<String, String> emptyMap(), false));
+    }
+
+    private static boolean retry(BackoffRetryPolicy policy, VolleyError error) {
+        try {
+            policy.retry(error);
+        } catch (VolleyError e) {
+            // 不在网络线程重试，错误总是交给监听器
+            assertSame(error, e);
+            return policy.takeRetryDelay() >= 0;
+        }
+        fail("retry() must hand the error to the listener");
+        return false;
+    }
+
+    public void testRetryableFailuresKeepDelay() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000,
+                new BackoffPolicy(100, 1000, 2, 2, 2));
+        assertTrue(retry(policy, new NoConnectionError()));
+        assertTrue(retry(policy, new TimeoutError()));
+        assertTrue(retry(policy, statusError(503)));
+        assertEquals(3, policy.getCurrentRetryCount());
+    }
+
+    public void testClientErrorIsNotRetried() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000, new BackoffPolicy());
+        assertFalse(retry(policy, statusError(404)));
+        assertEquals(0, policy.getCurrentRetryCount());
+    }
+
+    public void testLimitStopsRetries() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000,
+                new BackoffPolicy(100, 1000, 1, 1, 1));
+        assertTrue(retry(policy, new TimeoutError()));
+        assertFalse(retry(policy, new TimeoutError()));
+    }
+
+    public void testDelayIsTakenOnce() {
+        BackoffRetryPolicy policy = new BackoffRetryPolicy(1000, new BackoffPolicy());
+        assertTrue(retry(policy, new NoConnectionError()));
+        assertEquals(-1, policy.takeRetryDelay());
+    }
+}
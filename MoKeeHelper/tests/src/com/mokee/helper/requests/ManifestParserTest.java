@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.requests;
+
+import java.io.StringReader;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+import com.mokee.helper.misc.BuildVersion;
+import com.mokee.helper.misc.ItemInfo;
+
+/**
+ * 流式清单解析及提前停止
+ */
+public class ManifestParserTest extends TestCase {
+    private static final BuildVersion INSTALLED = BuildVersion
+            .parse("MK44.2-hammerhead-141020-NIGHTLY");
+
+    private static String update(String name) {
+        return "{\"name\":\"" + name + "\",\"length\":\"1024\",\"md5\":\"0123456789abcdef\","
+                + "\"rom\":\"http://download.invalid/" + name + "\","
+                + "\"log\":\"http://download.invalid/" + name + ".html\"}";
+    }
+
+    private static String build(String date) {
+        return "MK44.2-hammerhead-" + date + "-NIGHTLY.zip";
+    }
+
+    private static LinkedList<ItemInfo> parseUpdates(String json, boolean allChannels,
+            boolean newerOnly) {
+        return ManifestParser.parseUpdates(new StringReader(json), allChannels, newerOnly,
+                INSTALLED);
+    }
+
+    public void testReadsEntryFields() {
+        LinkedList<ItemInfo> updates = parseUpdates("[{\"name\":\"" + build("141025")
+                + "\",\"length\":\"1024\",\"md5\":\"0123456789abcdef\",\"extra\":{\"a\":[1,2]},"
+                + "\"rom\":\"http://download.invalid/rom.zip\",\"log\":\"http://download.invalid/log\","
+                + "\"description\":null}]", false, false);
+        assertEquals(1, updates.size());
+        ItemInfo info = updates.getFirst();
+        assertEquals(build("141025"), info.getFileName());
+        assertEquals("1024", info.getFileSize());
+        assertEquals("0123456789abcdef", info.getMd5Sum());
+        assertEquals("http://download.invalid/rom.zip", info.getDownloadUrl());
+        assertEquals("http://download.invalid/log", info.getChangelogUrl());
+    }
+
+    public void testDropsIncompleteEntries() {
+        LinkedList<ItemInfo> updates = parseUpdates("[{\"name\":\"" + build("141025")
+                + "\",\"length\":\"1024\"}, 42, " + update(build("141024")) + "]", false, false);
+        assertEquals(1, updates.size());
+        assertEquals(build("141024"), updates.getFirst().getFileName());
+    }
+
+    public void testStopsAtFirstOlderEntry() {
+        // 旧版本之后的内容不再读取，截断的尾部不影响结果
+        String json = "[" + update(build("141025")) + "," + update(build("141022")) + ","
+                + update(build("141020")) + "," + update(build("141030")) + ",{\"name\":";
+        LinkedList<ItemInfo> updates = parseUpdates(json, false, true);
+        assertEquals(2, updates.size());
+        assertEquals(build("141025"), updates.get(0).getFileName());
+        assertEquals(build("141022"), updates.get(1).getFileName());
+    }
+
+    public void testKeepsUnrecognizedNamesWhenNewerOnly() {
+        LinkedList<ItemInfo> updates = parseUpdates("[" + update("custom.zip") + ","
+                + update(build("141021")) + "]", false, true);
+        assertEquals(2, updates.size());
+    }
+
+    public void testUnknownInstalledVersionKeepsAll() {
+        String json = "[" + update(build("141010")) + "," + update(build("141005")) + "]";
+        LinkedList<ItemInfo> updates = ManifestParser.parseUpdates(new StringReader(json), false,
+                true, null);
+        assertEquals(2, updates.size());
+    }
+
+    public void testAllChannelsDoNotStopEarly() {
+        String json = "{\"RELEASE\":[" + update(build("141001")) + "," + update(build("141030"))
+                + "],\"OTHER\":[" + update(build("141031")) + "],\"NIGHTLY\":["
+                + update(build("141025")) + "]}";
+        LinkedList<ItemInfo> updates = parseUpdates(json, true, true);
+        assertEquals(3, updates.size());
+    }
+
+    public void testMalformedManifestKeepsEntriesReadSoFar() {
+        String json = "[" + update(build("141025")) + "," + update(build("141010")) + ",{\"name\":";
+        LinkedList<ItemInfo> updates = parseUpdates(json, false, false);
+        assertEquals(2, updates.size());
+        assertTrue(parseUpdates("<html>", false, false).isEmpty());
+    }
+
+    public void testParseExtras() {
+        String json = "{\"gms\":[{\"name\":\"gapps.zip\",\"length\":\"10\",\"md5\":\"aa\","
+                + "\"download\":\"http://download.invalid/gapps.zip\",\"changelog\":\"log\","
+                + "\"description\":\"Google apps\",\"checkflag\":\"gms\"}],"
+                + "\"ignored\":{\"x\":1},"
+                + "\"application\":[{\"name\":\"app.apk\",\"length\":\"20\",\"md5\":\"bb\","
+                + "\"download\":\"http://download.invalid/app.apk\",\"changelog\":\"log\","
+                + "\"description\":\"App\"}]}";
+        LinkedList<ItemInfo> extras = ManifestParser.parseExtras(new StringReader(json));
+        // 缺少checkflag的条目被丢弃
+        assertEquals(1, extras.size());
+        ItemInfo info = extras.getFirst();
+        assertEquals("gapps.zip", info.getFileName());
+        assertEquals("http://download.invalid/gapps.zip", info.getDownloadUrl());
+        assertEquals("Google apps", info.getDescription());
+        assertEquals("gms", info.getCheckflag());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import junit.framework.TestCase;
+
+/**
+ * 退避延迟、分类重试次数及共享预算
+ */
+public class BackoffPolicyTest extends TestCase {
+    private static final long BASE = 100;
+    private static final long MAX = 1000;
+
+    public void testDelayIsJitteredBelowExponentialCap() {
+        BackoffPolicy policy = new BackoffPolicy(BASE, MAX, 20, 20, 20);
+        BackoffPolicy.Retry retry = policy.newRetry(null);
+        for (int attempt = 0; attempt < 20; attempt++) {
+            long delay = retry.next(BackoffPolicy.FAILURE_READ);
+            long cap = Math.min(BASE << attempt, MAX);
+            assertTrue("attempt " + attempt + " delay " + delay, delay >= 0 && delay < cap);
+            assertEquals(attempt + 1, retry.getAttempt());
+        }
+    }
+
+    public void testLimitsArePerFailureKind() {
+        BackoffPolicy policy = new BackoffPolicy(BASE, MAX, 2, 1, 1);
+        BackoffPolicy.Retry retry = policy.newRetry(null);
+        assertTrue(retry.next(BackoffPolicy.FAILURE_CONNECT) >= 0);
+        assertTrue(retry.next(BackoffPolicy.FAILURE_CONNECT) >= 0);
+        assertEquals(-1, retry.next(BackoffPolicy.FAILURE_CONNECT));
+
+        assertTrue(retry.next(BackoffPolicy.FAILURE_READ) >= 0);
+        assertEquals(-1, retry.next(BackoffPolicy.FAILURE_READ));
+        assertTrue(retry.next(BackoffPolicy.FAILURE_STATUS) >= 0);
+        assertEquals(-1, retry.next(BackoffPolicy.FAILURE_STATUS));
+    }
+
+    public void testProgressResetsConsecutiveFailures() {
+        BackoffPolicy policy = new BackoffPolicy(BASE, MAX, 1, 1, 1);
+        BackoffPolicy.Retry retry = policy.newRetry(null);
+        assertTrue(retry.next(BackoffPolicy.FAILURE_CONNECT) >= 0);
+        assertEquals(-1, retry.next(BackoffPolicy.FAILURE_CONNECT));
+
+        retry.onProgress();
+        assertEquals(0, retry.getAttempt());
+        long delay = retry.next(BackoffPolicy.FAILURE_CONNECT);
+        assertTrue(delay >= 0 && delay < BASE);
+    }
+
+    public void testBudgetIsSharedBetweenRetries() {
+        BackoffPolicy policy = new BackoffPolicy(BASE, MAX, 10, 10, 10);
+        BackoffPolicy.Budget budget = new BackoffPolicy.Budget(3);
+        BackoffPolicy.Retry first = policy.newRetry(budget);
+        BackoffPolicy.Retry second = policy.newRetry(budget);
+
+        assertTrue(first.next(BackoffPolicy.FAILURE_READ) >= 0);
+        assertTrue(second.next(BackoffPolicy.FAILURE_CONNECT) >= 0);
+        assertTrue(first.next(BackoffPolicy.FAILURE_STATUS) >= 0);
+        assertEquals(-1, second.next(BackoffPolicy.FAILURE_READ));
+        assertEquals(0, budget.getRemaining());
+        assertEquals(3, budget.getUsed());
+
+        // 进度不归还预算
+        first.onProgress();
+        assertEquals(-1, first.next(BackoffPolicy.FAILURE_READ));
+    }
+
+    public void testExhaustedLimitDoesNotConsumeBudget() {
+        BackoffPolicy policy = new BackoffPolicy(BASE, MAX, 1, 1, 1);
+        BackoffPolicy.Budget budget = new BackoffPolicy.Budget(5);
+        BackoffPolicy.Retry retry = policy.newRetry(budget);
+        assertTrue(retry.next(BackoffPolicy.FAILURE_CONNECT) >= 0);
+        assertEquals(-1, retry.next(BackoffPolicy.FAILURE_CONNECT));
+        assertEquals(1, budget.getUsed());
+        assertEquals(4, budget.getRemaining());
+    }
+
+    public void testRetryableStatus() {
+        assertTrue(BackoffPolicy.isRetryableStatus(500));
+        assertTrue(BackoffPolicy.isRetryableStatus(503));
+        assertTrue(BackoffPolicy.isRetryableStatus(408));
+        assertTrue(BackoffPolicy.isRetryableStatus(429));
+        assertFalse(BackoffPolicy.isRetryableStatus(200));
+        assertFalse(BackoffPolicy.isRetryableStatus(404));
+        assertFalse(BackoffPolicy.isRetryableStatus(416));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * 多个分段并发按位置写入同一文件
+ */
+public class PositionalFileWriterTest extends AndroidTestCase {
+    private static final String TAG = "PositionalFileWriterTest";
+    private static final int SEGMENTS = 4;
+    private static final int SEGMENT_SIZE = 256 * 1024;
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getContext().getCacheDir(), "positional-writer-test.bin");
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    public void testConcurrentSegmentsWriteTheirRanges() throws Exception {
+        final byte[] data = randomBytes(SEGMENTS * SEGMENT_SIZE);
+        final PositionalFileWriter writer = new PositionalFileWriter(file.getPath());
+        final IOException[] failure = new IOException[1];
+        Thread[] threads = new Thread[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            final int start = i * SEGMENT_SIZE;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // 直接缓冲，与下载时相同
+                        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+                        for (int offset = 0; offset < SEGMENT_SIZE; offset += CHUNK_SIZE) {
+                            chunk.clear();
+                            chunk.put(data, start + offset, CHUNK_SIZE).flip();
+                            writer.write(chunk, start + offset);
+                        }
+                    } catch (IOException e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure[0]);
+        writer.sync();
+
+        ByteBuffer back = ByteBuffer.allocate(data.length);
+        writer.read(back, 0);
+        writer.close();
+        assertTrue(Arrays.equals(data, back.array()));
+        assertEquals(data.length, file.length());
+    }
+
+    public void testReadPastEndFails() throws Exception {
+        PositionalFileWriter writer = new PositionalFileWriter(file.getPath());
+        try {
+            writer.write(ByteBuffer.wrap(new byte[10]), 0);
+            writer.read(ByteBuffer.allocate(20), 0);
+            fail("read past the end of the file");
+        } catch (IOException expected) {
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 粗略对比原来每次同步写入的"rwd"方式，只记录结果
+     */
+    public void testThroughput() throws Exception {
+        byte[] data = randomBytes(4 * 1024 * 1024);
+
+        long start = SystemClock.elapsedRealtime();
+        RandomAccessFile rwd = new RandomAccessFile(file, "rwd");
+        try {
+            for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                rwd.seek(offset);
+                rwd.write(data, offset, CHUNK_SIZE);
+            }
+        } finally {
+            rwd.close();
+        }
+        long rwdTime = SystemClock.elapsedRealtime() - start;
+        file.delete();
+
+        start = SystemClock.elapsedRealtime();
+        PositionalFileWriter writer = new PositionalFileWriter(file.getPath());
+        try {
+            for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+                writer.write(ByteBuffer.wrap(data, offset, CHUNK_SIZE), offset);
+            }
+            writer.sync();
+        } finally {
+            writer.close();
+        }
+        long positionalTime = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(data.length, file.length());
+        Log.i(TAG, "4MB in 16KB chunks: rwd " + rwdTime + "ms, positional + sync "
+                + positionalTime + "ms");
+    }
+}
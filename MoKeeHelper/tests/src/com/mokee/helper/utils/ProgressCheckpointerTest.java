@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.test.AndroidTestCase;
+
+import com.mokee.helper.db.DownLoadDao;
+import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.misc.DownLoadInfo;
+import com.mokee.helper.misc.ThreadDownLoadInfo;
+
+/**
+ * 检查点提交及中断后续传
+ */
+public class ProgressCheckpointerTest extends AndroidTestCase {
+    private static final long SEGMENT_SIZE = 1000;
+
+    private String url;
+    private long downloadId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        url = "http://download.invalid/checkpointer-" + System.nanoTime() + ".zip";
+        DownLoadDao.getInstance().saveInfo(new DownLoadInfo(url, 0, "0", "/dev/null",
+                "checkpointer.zip", SEGMENT_SIZE * 3, 0));
+        downloadId = DownLoadDao.getInstance().getDownloadId(url);
+        assertTrue(downloadId > 0);
+        List<ThreadDownLoadInfo> infos = new ArrayList<ThreadDownLoadInfo>();
+        for (int i = 0; i < 3; i++) {
+            infos.add(new ThreadDownLoadInfo(i, i * SEGMENT_SIZE, (i + 1) * SEGMENT_SIZE - 1, 0,
+                    url));
+        }
+        ThreadDownLoadDao.getInstance().saveInfos(downloadId, infos);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        // 分段记录随下载记录级联删除
+        DownLoadDao.getInstance().delete(url);
+        super.tearDown();
+    }
+
+    private Map<Integer, Long> loadDownSizes() {
+        Map<Integer, Long> downSizes = new HashMap<Integer, Long>();
+        for (ThreadDownLoadInfo info : ThreadDownLoadDao.getInstance().getThreadInfoList(
+                downloadId, url)) {
+            downSizes.put(info.getThreadId(), info.getDownSize());
+        }
+        return downSizes;
+    }
+
+    private ProgressCheckpointer newIdleCheckpointer() {
+        // 阈值永远达不到，只在flush()时提交
+        return new ProgressCheckpointer(downloadId, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public void testUpdateBelowThresholdIsNotCommitted() {
+        ProgressCheckpointer checkpointer = newIdleCheckpointer();
+        checkpointer.update(0, 100, 100);
+        assertEquals(Long.valueOf(0), loadDownSizes().get(0));
+    }
+
+    public void testFlushCommitsEveryDirtySlot() {
+        ProgressCheckpointer checkpointer = newIdleCheckpointer();
+        checkpointer.update(0, 100, 100);
+        checkpointer.update(1, 50, 50);
+        checkpointer.update(0, 300, 200);
+        checkpointer.flush();
+
+        Map<Integer, Long> downSizes = loadDownSizes();
+        assertEquals(Long.valueOf(300), downSizes.get(0));
+        assertEquals(Long.valueOf(50), downSizes.get(1));
+        assertEquals(Long.valueOf(0), downSizes.get(2));
+    }
+
+    public void testByteThresholdQueuesCommit() {
+        ProgressCheckpointer checkpointer = new ProgressCheckpointer(downloadId, Long.MAX_VALUE,
+                100);
+        checkpointer.update(2, 150, 150);
+        // 写入线程按顺序执行，flush返回时之前排队的提交已完成
+        checkpointer.flush();
+        assertEquals(Long.valueOf(150), loadDownSizes().get(2));
+    }
+
+    public void testFailedSyncKeepsPreviousCheckpoint() {
+        final boolean[] fail = {
+                true
+        };
+        ProgressCheckpointer checkpointer = newIdleCheckpointer();
+        checkpointer.setSyncBarrier(new ProgressCheckpointer.SyncBarrier() {
+            @Override
+            public void sync() throws IOException {
+                if (fail[0]) {
+                    throw new IOException("sync failed");
+                }
+            }
+        });
+        checkpointer.update(0, 200, 200);
+        checkpointer.flush();
+        assertEquals(Long.valueOf(0), loadDownSizes().get(0));
+
+        // 未提交的进度保留到下次提交
+        fail[0] = false;
+        checkpointer.flush();
+        assertEquals(Long.valueOf(200), loadDownSizes().get(0));
+    }
+
+    /**
+     * 进程在两次提交之间被杀死，续传从最后一次提交的位置开始
+     */
+    public void testResumeFromLastCheckpointAfterKill() {
+        ProgressCheckpointer checkpointer = newIdleCheckpointer();
+        checkpointer.update(0, SEGMENT_SIZE, SEGMENT_SIZE);
+        checkpointer.update(1, 300, 300);
+        checkpointer.flush();
+        checkpointer.update(1, 700, 400);
+        // 不再flush，模拟进程被杀死
+        checkpointer = null;
+
+        List<ThreadDownLoadInfo> infos = ThreadDownLoadDao.getInstance().getThreadInfoList(
+                downloadId, url);
+        assertEquals(3, infos.size());
+        SegmentScheduler scheduler = new SegmentScheduler(url, downloadId, infos);
+        assertEquals(SEGMENT_SIZE + 300, scheduler.getContiguousEnd());
+
+        // 已完成的分段不再领取
+        ThreadDownLoadInfo next = scheduler.next(null);
+        assertEquals(1, next.getThreadId());
+        assertEquals(300, next.getDownSize());
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * 与MessageDigest结果一致，且可在任意位置保存、恢复
+ */
+public class ResumableMD5Test extends TestCase {
+    private static final String TAG = "ResumableMD5Test";
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private static String expected(byte[] data, int length) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(data, 0, length);
+        return hex(digest.digest());
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    public void testRfc1321Vectors() {
+        String[][] vectors = {
+                {
+                        "", "d41d8cd98f00b204e9800998ecf8427e"
+                }, {
+                        "a", "0cc175b9c0f1b6a831c399e269772661"
+                }, {
+                        "abc", "900150983cd24fb0d6963f7d28e17f72"
+                }, {
+                        "message digest", "f96b697d7cb7938d525a2f31aaf161d0"
+                }, {
+                        "12345678901234567890123456789012345678901234567890123456789012345678901234567890",
+                        "57edf4a22be3c955ac49da2e2107b67a"
+                }
+        };
+        for (String[] vector : vectors) {
+            byte[] input = vector[0].getBytes();
+            ResumableMD5 md5 = new ResumableMD5();
+            md5.update(input, 0, input.length);
+            assertEquals(vector[0], vector[1], md5.digestHex());
+        }
+    }
+
+    public void testMatchesMessageDigestAroundBlockBoundaries() throws Exception {
+        byte[] data = randomBytes(300, 1);
+        for (int length = 0; length <= data.length; length++) {
+            ResumableMD5 md5 = new ResumableMD5();
+            md5.update(data, 0, length);
+            assertEquals("length " + length, expected(data, length), md5.digestHex());
+        }
+    }
+
+    public void testChunkedUpdatesMatchMessageDigest() throws Exception {
+        byte[] data = randomBytes(64 * 1024 + 17, 2);
+        Random random = new Random(3);
+        ResumableMD5 md5 = new ResumableMD5();
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(random.nextInt(200), data.length - offset);
+            md5.update(data, offset, length);
+            offset += length;
+        }
+        assertEquals(data.length, md5.getCount());
+        assertEquals(expected(data, data.length), md5.digestHex());
+    }
+
+    public void testSaveAndRestoreAnywhere() throws Exception {
+        byte[] data = randomBytes(1000, 4);
+        for (int split = 0; split <= data.length; split += 7) {
+            ResumableMD5 first = new ResumableMD5();
+            first.update(data, 0, split);
+            byte[] state = first.save();
+            assertEquals(28 + split % 64, state.length);
+
+            ResumableMD5 resumed = ResumableMD5.restore(state);
+            assertNotNull(resumed);
+            assertEquals(split, resumed.getCount());
+            resumed.update(data, split, data.length - split);
+            assertEquals("split " + split, expected(data, data.length), resumed.digestHex());
+        }
+    }
+
+    public void testDigestDoesNotChangeState() throws Exception {
+        byte[] data = randomBytes(200, 5);
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.update(data, 0, 100);
+        assertEquals(expected(data, 100), md5.digestHex());
+        md5.update(data, 100, 100);
+        assertEquals(expected(data, 200), md5.digestHex());
+    }
+
+    public void testByteBufferUpdate() throws Exception {
+        byte[] data = randomBytes(20000, 6);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.update(direct);
+        assertFalse(direct.hasRemaining());
+        assertEquals(expected(data, data.length), md5.digestHex());
+
+        ByteBuffer heap = ByteBuffer.wrap(data, 10, 100);
+        md5 = new ResumableMD5();
+        md5.update(heap);
+        byte[] slice = new byte[100];
+        System.arraycopy(data, 10, slice, 0, 100);
+        assertEquals(expected(slice, 100), md5.digestHex());
+    }
+
+    public void testRestoreRejectsInvalidState() {
+        assertNull(ResumableMD5.restore(null));
+        assertNull(ResumableMD5.restore(new byte[10]));
+
+        ResumableMD5 md5 = new ResumableMD5();
+        md5.update(new byte[70], 0, 70);
+        byte[] state = md5.save();
+        // 版本不符
+        byte[] badVersion = state.clone();
+        badVersion[3] = 9;
+        assertNull(ResumableMD5.restore(badVersion));
+        // 缓冲长度与计数不符
+        byte[] truncated = new byte[state.length - 1];
+        System.arraycopy(state, 0, truncated, 0, truncated.length);
+        assertNull(ResumableMD5.restore(truncated));
+    }
+
+    /**
+     * 粗略对比吞吐量，只记录结果
+     */
+    public void testThroughput() throws Exception {
+        byte[] data = randomBytes(8 * 1024 * 1024, 7);
+        long start = SystemClock.elapsedRealtime();
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        digest.update(data);
+        String reference = hex(digest.digest());
+        long referenceTime = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        ResumableMD5 md5 = new ResumableMD5();
+        for (int offset = 0; offset < data.length; offset += 256 * 1024) {
+            md5.update(data, offset, 256 * 1024);
+        }
+        String result = md5.digestHex();
+        long time = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(reference, result);
+        Log.i(TAG, "8MB: MessageDigest " + referenceTime + "ms, ResumableMD5 " + time + "ms");
+    }
+}
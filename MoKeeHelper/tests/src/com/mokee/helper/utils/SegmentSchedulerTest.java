@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 The MoKee OpenSource Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.mokee.helper.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+
+import com.mokee.helper.db.DownLoadDao;
+import com.mokee.helper.db.ThreadDownLoadDao;
+import com.mokee.helper.misc.DownLoadInfo;
+import com.mokee.helper.misc.ThreadDownLoadInfo;
+
+/**
+ * 分段领取、拆分及回滚
+ */
+public class SegmentSchedulerTest extends AndroidTestCase {
+    private static final long MB = 1024 * 1024;
+
+    private String url;
+    private long downloadId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        url = "http://download.invalid/scheduler-" + System.nanoTime() + ".zip";
+        DownLoadDao.getInstance().saveInfo(new DownLoadInfo(url, 0, "0", "/dev/null",
+                "scheduler.zip", 10 * MB, 0));
+        downloadId = DownLoadDao.getInstance().getDownloadId(url);
+        assertTrue(downloadId > 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DownLoadDao.getInstance().delete(url);
+        super.tearDown();
+    }
+
+    private ThreadDownLoadInfo segment(int threadId, long startPos, long endPos, long downSize) {
+        return new ThreadDownLoadInfo(threadId, startPos, endPos, downSize, url);
+    }
+
+    public void testClaimsUnownedSegmentsFirst() {
+        ThreadDownLoadInfo first = segment(0, 0, 5 * MB - 1, 0);
+        ThreadDownLoadInfo second = segment(1, 5 * MB, 10 * MB - 1, 0);
+        ThreadDownLoadInfo done = segment(2, 10 * MB, 11 * MB - 1, MB);
+        SegmentScheduler scheduler = new SegmentScheduler(url, downloadId,
+                new ArrayList<ThreadDownLoadInfo>(Arrays.asList(done, first, second)));
+
+        assertSame(first, scheduler.next(null));
+        assertSame(second, scheduler.next(null));
+        assertEquals(3, scheduler.getSegmentCount());
+    }
+
+    public void testSplitStealsBackHalfOfRemainingRange() {
+        ThreadDownLoadInfo victim = segment(0, 0, 10 * MB - 1, 2 * MB);
+        List<ThreadDownLoadInfo> infos = new ArrayList<ThreadDownLoadInfo>();
+        infos.add(victim);
+        ThreadDownLoadDao.getInstance().saveInfos(downloadId, infos);
+        SegmentScheduler scheduler = new SegmentScheduler(url, downloadId, infos);
+        assertSame(victim, scheduler.next(null));
+
+        // 剩余8MB，后4MB拆给新分段
+        ThreadDownLoadInfo stolen = scheduler.next(null);
+        assertNotNull(stolen);
+        assertEquals(1, stolen.getThreadId());
+        assertEquals(6 * MB, stolen.getStartPos());
+        assertEquals(10 * MB - 1, stolen.getEndPos());
+        assertEquals(0, stolen.getDownSize());
+        assertEquals(6 * MB - 1, victim.getEndPos());
+        assertEquals(2, scheduler.getSegmentCount());
+
+        // 拆分已写入数据库
+        List<ThreadDownLoadInfo> stored = ThreadDownLoadDao.getInstance().getThreadInfoList(
+                downloadId, url);
+        assertEquals(2, stored.size());
+        for (ThreadDownLoadInfo info : stored) {
+            if (info.getThreadId() == 0) {
+                assertEquals(6 * MB - 1, info.getEndPos());
+            } else {
+                assertEquals(6 * MB, info.getStartPos());
+                assertEquals(10 * MB - 1, info.getEndPos());
+            }
+        }
+    }
+
+    public void testNoSplitBelowMinimumSize() {
+        long size = SegmentScheduler.MIN_SPLIT_SIZE * 2 - 1;
+        ThreadDownLoadInfo only = segment(0, 0, size - 1, 0);
+        SegmentScheduler scheduler = new SegmentScheduler(url, downloadId,
+                new ArrayList<ThreadDownLoadInfo>(Arrays.asList(only)));
+        assertSame(only, scheduler.next(null));
+        assertNull(scheduler.next(null));
+        assertEquals(size - 1, only.getEndPos());
+    }
+
+    public void testNoSplitWhenNotSplittable() {
+        ThreadDownLoadInfo only = segment(0, 0, 10 * MB - 1, 0);
+        SegmentScheduler scheduler = new SegmentScheduler(url, downloadId,
+                new ArrayList<ThreadDownLoadInfo>(Arrays.asList(only)));
+        scheduler.setSplittable(false);
+        assertSame(only, scheduler.next(null));
+        assertNull(scheduler.next(null));
+        assertEquals(1, scheduler.getSegmentCount());
+    }
+
+    public void testFailedSplitIsRolledBack() {
+        ThreadDownLoadInfo victim = segment(0, 0, 10 * MB - 1, 0);
+        // 不存在的下载记录，插入新分段违反外键约束
+        SegmentScheduler scheduler = new SegmentScheduler(url, -1,
+                new ArrayList<ThreadDownLoadInfo>(Arrays.asList(victim)));
+        assertSame(victim, scheduler.next(null));
+
+        assertNull(scheduler.next(null));
+        assertEquals(10 * MB - 1, victim.getEndPos());
+        assertEquals(1, scheduler.getSegmentCount());
+    }
+
+    public void testContiguousEnd() {
+        SegmentScheduler scheduler = new SegmentScheduler(url, downloadId,
+                new ArrayList<ThreadDownLoadInfo>(Arrays.asList(
+                        segment(2, 200, 299, 100),
+                        segment(0, 0, 99, 100),
+                        segment(1, 100, 199, 50))));
+        assertEquals(150, scheduler.getContiguousEnd());
+
+        scheduler = new SegmentScheduler(url, downloadId,
+                new ArrayList<ThreadDownLoadInfo>(Arrays.asList(
+                        segment(0, 0, 99, 100),
+                        segment(1, 100, 199, 100))));
+        assertEquals(200, scheduler.getContiguousEnd());
+    }
+}